@@ -1,18 +1,113 @@
 package com.lingfenglong.beans.a01bean;
 
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.mysql.cj.jdbc.Driver;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
+import org.awaitility.Awaitility;
+import org.h2.tools.SimpleResultSet;
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.MutablePropertyValues;
+import org.springframework.beans.PropertyValue;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.beans.factory.BeanCurrentlyInCreationException;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.ObjectFactory;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanDefinitionHolder;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.beans.factory.config.ConstructorArgumentValues;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
 import org.springframework.beans.factory.config.RuntimeBeanReference;
+import org.springframework.beans.factory.config.TypedStringValue;
+import org.springframework.beans.factory.aot.BeanInstanceSupplier;
+import org.springframework.beans.factory.support.AbstractBeanDefinition;
 import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.ManagedList;
+import org.springframework.beans.factory.support.RegisteredBean;
 import org.springframework.beans.factory.support.RootBeanDefinition;
 import org.springframework.context.ApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.event.ContextClosedEvent;
 import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.simple.JdbcClient;
+import org.springframework.core.metrics.ApplicationStartup;
+import org.springframework.core.metrics.StartupStep;
+import org.springframework.core.metrics.jfr.FlightRecorderApplicationStartup;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
 import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
 
-import java.util.Collection;
+import javax.sql.DataSource;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Executable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class Application {
 
@@ -20,36 +115,196 @@ public class Application {
 
 class ApplicationTest {
     ApplicationContext createApplicationContext() {
-        DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        return createApplicationContext(Driver.class, "jdbc:mysql://127.0.0.1:3306/mydatabase", "root", "root");
+    }
+
+    ConfigurableApplicationContext createApplicationContext(Class<? extends java.sql.Driver> driverClass,
+                                                            String url, String username, String password) {
+        return createApplicationContext(new StandardEnvironment(), driverClass, url, username, password);
+    }
+
+    /**
+     * {@code datasource.pooled=true} puts a Hikari pool in front of the driver, sized and tuned by the
+     * {@code datasource.pool.*} properties
+     */
+    ConfigurableApplicationContext createApplicationContext(ConfigurableEnvironment environment,
+                                                            Class<? extends java.sql.Driver> driverClass,
+                                                            String url, String username, String password) {
+        // context.parallel-init=N creates independent singletons on N threads
+        int parallelism = environment.getProperty("context.parallel-init", Integer.class, 0);
+        DefaultListableBeanFactory beanFactory = parallelism > 0
+                ? new ParallelInitializingBeanFactory(parallelism)
+                : new DefaultListableBeanFactory();
 
         ConstructorArgumentValues constructorVals;
 
-        RootBeanDefinition driverBeanDefinition = new RootBeanDefinition(Driver.class);
+        RootBeanDefinition driverBeanDefinition = new RootBeanDefinition(driverClass);
         beanFactory.registerBeanDefinition("driver", driverBeanDefinition);
 
         RootBeanDefinition datasourceBeanDefinition = new RootBeanDefinition(SimpleDriverDataSource.class);
         // public SimpleDriverDataSource(java.sql.Driver driver, String url, String username, String password) {}
         constructorVals = datasourceBeanDefinition.getConstructorArgumentValues();
         constructorVals.addGenericArgumentValue(new RuntimeBeanReference("driver"));
-        constructorVals.addGenericArgumentValue("jdbc:mysql://127.0.0.1:3306/mydatabase");
-        constructorVals.addGenericArgumentValue("root");
-        constructorVals.addGenericArgumentValue("root");
+        constructorVals.addGenericArgumentValue(useCursorFetch(rewriteBatchedStatements(environment, url)));
+        constructorVals.addGenericArgumentValue(username);
+        constructorVals.addGenericArgumentValue(password);
         // beanFactory.registerBeanDefinition("datasource", datasourceBeanDefinition);
 
+        if (environment.getProperty("datasource.pooled", Boolean.class, false)) {
+            beanFactory.registerBeanDefinition("poolMetrics", new RootBeanDefinition(PoolMetrics.class));
+
+            // the pool borrows its physical connections from the driver datasource
+            RootBeanDefinition hikariConfigBeanDefinition = new RootBeanDefinition(HikariConfig.class);
+            MutablePropertyValues propertyValues = hikariConfigBeanDefinition.getPropertyValues();
+            propertyValues.add("dataSource", datasourceBeanDefinition);
+            propertyValues.add("poolName", "customers");
+            propertyValues.add("minimumIdle",
+                    environment.getProperty("datasource.pool.minimum-idle", Integer.class, 2));
+            propertyValues.add("maximumPoolSize",
+                    environment.getProperty("datasource.pool.maximum-size", Integer.class, 10));
+            propertyValues.add("connectionTimeout",
+                    environment.getProperty("datasource.pool.connection-timeout", Long.class, 30_000L));
+            // connections are checked with Connection.isValid before they are handed out
+            propertyValues.add("validationTimeout",
+                    environment.getProperty("datasource.pool.validation-timeout", Long.class, 1_000L));
+            propertyValues.add("leakDetectionThreshold",
+                    environment.getProperty("datasource.pool.leak-detection-threshold", Long.class, 10_000L));
+            propertyValues.add("metricsTrackerFactory", new RuntimeBeanReference("poolMetrics"));
+
+            // public HikariDataSource(HikariConfig configuration) {}
+            datasourceBeanDefinition = new RootBeanDefinition(HikariDataSource.class);
+            datasourceBeanDefinition.getConstructorArgumentValues().addGenericArgumentValue(hikariConfigBeanDefinition);
+            datasourceBeanDefinition.setDestroyMethodName("close");
+        }
+
+        RootBeanDefinition jdbcTemplateBeanDefinition = new RootBeanDefinition(JdbcTemplate.class);
+        constructorVals = jdbcTemplateBeanDefinition.getConstructorArgumentValues();
+        constructorVals.addGenericArgumentValue(datasourceBeanDefinition);
+        beanFactory.registerBeanDefinition("jdbcTemplate", jdbcTemplateBeanDefinition);
+
         RootBeanDefinition jdbcClientBeanDefinition = new RootBeanDefinition(JdbcClient.class);
         jdbcClientBeanDefinition.setFactoryMethodName("create");
         constructorVals = jdbcClientBeanDefinition.getConstructorArgumentValues();
-        // constructorVals.addGenericArgumentValue(new RuntimeBeanReference("datasource"));
-        constructorVals.addGenericArgumentValue(datasourceBeanDefinition);
+        // public static JdbcClient create(JdbcOperations jdbcTemplate) {}
+        constructorVals.addGenericArgumentValue(new RuntimeBeanReference("jdbcTemplate"));
         beanFactory.registerBeanDefinition("jdbcClient", jdbcClientBeanDefinition);
 
         RootBeanDefinition customerServiceBeanDefinition = new RootBeanDefinition(CustomerService.class);
         constructorVals = customerServiceBeanDefinition.getConstructorArgumentValues();
-        constructorVals.addGenericArgumentValue(new RuntimeBeanReference("jdbcClient"));
+        constructorVals.addIndexedArgumentValue(0, new RuntimeBeanReference("jdbcClient"));
+        constructorVals.addIndexedArgumentValue(1, new RuntimeBeanReference("jdbcTemplate"));
+        // customers.async=true (or customers.virtual-threads=true) gives the *Async methods an executor of their own,
+        // without it they run on the caller
+        boolean virtualThreads = environment.getProperty("customers.virtual-threads", Boolean.class, false);
+        if (virtualThreads || environment.getProperty("customers.async", Boolean.class, false)) {
+            // virtual threads when asked for and the runtime has them, a bounded platform pool otherwise
+            virtualThreads = virtualThreads && Runtime.version().feature() >= 21;
+            RootBeanDefinition executorBeanDefinition;
+            if (virtualThreads) {
+                executorBeanDefinition = new RootBeanDefinition(SimpleAsyncTaskExecutor.class);
+                executorBeanDefinition.getPropertyValues().add("virtualThreads", true);
+            } else {
+                executorBeanDefinition = new RootBeanDefinition(ThreadPoolTaskExecutor.class);
+                int poolSize = environment.getProperty("customers.async.pool-size", Integer.class, 16);
+                executorBeanDefinition.getPropertyValues().add("corePoolSize", poolSize);
+                executorBeanDefinition.getPropertyValues().add("maxPoolSize", poolSize);
+            }
+            executorBeanDefinition.getPropertyValues().add("threadNamePrefix", "customers-");
+            beanFactory.registerBeanDefinition("customerExecutor", executorBeanDefinition);
+            customerServiceBeanDefinition.getPropertyValues()
+                    .add("asyncExecutor", new RuntimeBeanReference("customerExecutor"));
+            customerServiceBeanDefinition.getPropertyValues().add("virtualThreads", virtualThreads);
+        }
+
+        if (environment.containsProperty("customers.cache-spec")) {
+            customerServiceBeanDefinition.getPropertyValues()
+                    .add("cacheSpec", environment.getProperty("customers.cache-spec"));
+        }
         beanFactory.registerBeanDefinition("customerService", customerServiceBeanDefinition);
 
         GenericApplicationContext applicationContext = new GenericApplicationContext(beanFactory);
+        applicationContext.setEnvironment(environment);
+        if (environment.getProperty("context.lazy-init", Boolean.class, false)) {
+            applicationContext.addBeanFactoryPostProcessor(new LazyByDefaultBeanFactoryPostProcessor());
+        }
+
+        // context.startup-profile=report times every bean, =jfr also records the steps as JFR events
+        String startupProfile = environment.getProperty("context.startup-profile");
+        ProfilingApplicationStartup startup = null;
+        if (startupProfile != null) {
+            startup = new ProfilingApplicationStartup(startupProfile.equals("jfr")
+                    ? new FlightRecorderApplicationStartup() : ApplicationStartup.DEFAULT);
+            applicationContext.setApplicationStartup(startup);
+            beanFactory.addBeanPostProcessor(startup.initTimer());
+        }
+
+        // context.snapshot=<file> writes the resolved constructors on the first boot and skips resolving them after
+        Path snapshot = environment.containsProperty("context.snapshot")
+                ? Path.of(environment.getProperty("context.snapshot")) : null;
+        boolean snapshotExists = snapshot != null && Files.exists(snapshot);
+        if (snapshotExists) {
+            try {
+                BeanDefinitionSnapshot.read(snapshot, beanFactory.getBeanClassLoader()).applyTo(beanFactory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
         applicationContext.refresh();
+        if (startup != null) {
+            System.out.println(startup.report());
+        }
+        if (snapshot != null && !snapshotExists) {
+            try {
+                BeanDefinitionSnapshot.capture(beanFactory).write(snapshot);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return applicationContext;
+    }
+
+    /**
+     * {@code datasource.rewrite-batched-statements=true} lets MySQL Connector/J send a JDBC batch as multi-row
+     * statements, other drivers have no such switch
+     */
+    static String rewriteBatchedStatements(Environment environment, String url) {
+        if (!url.startsWith("jdbc:mysql:")
+                || !environment.getProperty("datasource.rewrite-batched-statements", Boolean.class, false)) {
+            return url;
+        }
+        return url + (url.contains("?") ? "&" : "?") + "rewriteBatchedStatements=true";
+    }
+
+    /**
+     * without useCursorFetch=true MySQL Connector/J ignores a positive fetch size and reads the whole result into
+     * memory, so streaming only streams with it
+     */
+    static String useCursorFetch(String url) {
+        if (!url.startsWith("jdbc:mysql:") || url.contains("useCursorFetch=")) {
+            return url;
+        }
+        return url + (url.contains("?") ? "&" : "?") + "useCursorFetch=true";
+    }
+
+    /**
+     * an in-memory H2 database holding {@code rows} customers, LAZY_QUERY_EXECUTION makes H2 hand rows out while
+     * the query runs instead of buffering the whole result
+     */
+    ConfigurableApplicationContext createEmbeddedApplicationContext(int rows) {
+        return createEmbeddedApplicationContext(new StandardEnvironment(), rows);
+    }
+
+    ConfigurableApplicationContext createEmbeddedApplicationContext(ConfigurableEnvironment environment, int rows) {
+        String url = "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1;LAZY_QUERY_EXECUTION=TRUE";
+        ConfigurableApplicationContext applicationContext =
+                createApplicationContext(environment, org.h2.Driver.class, url, "sa", "");
+
+        JdbcTemplate jdbcTemplate = applicationContext.getBean(JdbcTemplate.class);
+        jdbcTemplate.execute("create table customers (id bigint primary key, name varchar(255) not null)");
+        jdbcTemplate.update("insert into customers select x, 'customer-' || x from system_range(1, ?)", rows);
+        // DB_CLOSE_DELAY keeps the database between connections, drop it together with the context
+        applicationContext.addApplicationListener((ContextClosedEvent event) -> jdbcTemplate.execute("shutdown"));
         return applicationContext;
     }
 
@@ -60,27 +315,1842 @@ class ApplicationTest {
         CustomerService customerService = applicationContext.getBean(CustomerService.class);
         customerService.findAll().forEach(System.out::println);
     }
+
+    @Test
+    void streamAllInConstantHeap() {
+        int rows = 1_000_000;
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(rows)) {
+            CustomerService customerService = applicationContext.getBean(CustomerService.class);
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            memory.gc();
+            long baseline = memory.getHeapMemoryUsage().getUsed();
+
+            AtomicLong seen = new AtomicLong();
+            AtomicLong peak = new AtomicLong();
+            try (Stream<Customer> customers = customerService.streamAll()) {
+                customers.forEach(customer -> {
+                    if (seen.incrementAndGet() % 100_000 == 0) {
+                        // what survives a collection is what the stream retains
+                        memory.gc();
+                        peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed() - baseline, Math::max);
+                    }
+                });
+            }
+
+            assertEquals(rows, seen.get());
+            // a million materialized customers take well over 50MB
+            assertTrue(peak.get() < 16 * 1024 * 1024, "retained " + peak.get() + " bytes while streaming");
+        }
+    }
+
+    @Test
+    void pooledConnectionsAreReused() {
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(pooled(1), 10)) {
+            JdbcClient jdbcClient = applicationContext.getBean(JdbcClient.class);
+            PoolMetrics poolMetrics = applicationContext.getBean(PoolMetrics.class);
+            long acquisitions = poolMetrics.acquisitions();
+
+            Integer session = jdbcClient.sql("select session_id()").query(Integer.class).single();
+            assertEquals(session, jdbcClient.sql("select session_id()").query(Integer.class).single());
+            assertEquals(acquisitions + 2, poolMetrics.acquisitions());
+            assertEquals(0, poolMetrics.timeouts());
+        }
+    }
+
+    @Test
+    void unpooledConnectionsAreOpenedPerQuery() {
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(10)) {
+            JdbcClient jdbcClient = applicationContext.getBean(JdbcClient.class);
+
+            Integer session = jdbcClient.sql("select session_id()").query(Integer.class).single();
+            assertNotEquals(session, jdbcClient.sql("select session_id()").query(Integer.class).single());
+            assertEquals(0, applicationContext.getBeanNamesForType(PoolMetrics.class).length);
+        }
+    }
+
+    @Test
+    void pooledFindAllUnderContention() throws Exception {
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(pooled(4), 100)) {
+            CustomerService customerService = applicationContext.getBean(CustomerService.class);
+            PoolMetrics poolMetrics = applicationContext.getBean(PoolMetrics.class);
+            HikariDataSource dataSource = (HikariDataSource) applicationContext.getBean(JdbcTemplate.class).getDataSource();
+
+            ExecutorService executor = Executors.newFixedThreadPool(16);
+            try {
+                List<Future<Collection<Customer>>> results = new ArrayList<>();
+                for (int i = 0; i < 200; i++) {
+                    results.add(executor.submit(() -> customerService.findAll()));
+                }
+                for (Future<Collection<Customer>> result : results) {
+                    assertEquals(100, result.get().size());
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            assertTrue(poolMetrics.acquisitions() >= 200);
+            assertEquals(0, dataSource.getHikariPoolMXBean().getActiveConnections());
+            assertTrue(dataSource.getHikariPoolMXBean().getTotalConnections() <= 4);
+            // 16 threads share 4 connections, so some wait, but none long enough to time out
+            assertEquals(0, poolMetrics.timeouts());
+            assertTrue(poolMetrics.maxWait().compareTo(poolMetrics.averageWait()) >= 0, poolMetrics::toString);
+        }
+    }
+
+    static ConfigurableEnvironment pooled(int maximumSize) {
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("pool", Map.of(
+                "datasource.pooled", true,
+                "datasource.pool.minimum-idle", 1,
+                "datasource.pool.maximum-size", maximumSize)));
+        return environment;
+    }
+
+    @Test
+    void findPageVisitsEveryCustomerOnce() {
+        int rows = 10_000;
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(rows)) {
+            CustomerService customerService = applicationContext.getBean(CustomerService.class);
+
+            long expectedId = 1;
+            CustomerPage page = customerService.findPage(null, 333);
+            while (true) {
+                for (Customer customer : page.customers()) {
+                    assertEquals(expectedId++, customer.id());
+                }
+                if (!page.hasNext()) {
+                    break;
+                }
+                page = customerService.findPage(page.nextCursor(), 333);
+            }
+            assertEquals(rows + 1, expectedId);
+        }
+    }
+
+    @Test
+    void findPageLatencyIsFlat() {
+        int rows = 1_000_000;
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(pooled(1), rows)) {
+            CustomerService customerService = applicationContext.getBean(CustomerService.class);
+            for (int i = 0; i < 200; i++) {
+                customerService.findPage((long) i * 1000, 100);
+            }
+
+            long first = medianNanos(() -> customerService.findPage(null, 100));
+            long middle = medianNanos(() -> customerService.findPage((long) rows / 2, 100));
+            long last = medianNanos(() -> customerService.findPage((long) rows - 100, 100));
+            System.out.printf("findPage median: first %dus, middle %dus, last %dus%n",
+                    first / 1000, middle / 1000, last / 1000);
+
+            // an offset walks every skipped row, a seek on the primary key stays within noise of the first page
+            long bound = Math.max(5 * first, TimeUnit.MILLISECONDS.toNanos(2));
+            assertTrue(middle < bound, "middle page took " + middle + "ns");
+            assertTrue(last < bound, "last page took " + last + "ns");
+        }
+    }
+
+    static long medianNanos(Runnable query) {
+        long[] samples = new long[51];
+        for (int i = 0; i < samples.length; i++) {
+            long start = System.nanoTime();
+            query.run();
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        return samples[samples.length / 2];
+    }
+
+    @Test
+    void saveAllUpsertsInBatches() {
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(0)) {
+            CustomerService customerService = applicationContext.getBean(CustomerService.class);
+            customerService.setBatchSize(7);
+
+            List<Customer> customers = new ArrayList<>();
+            for (long id = 1; id <= 100; id++) {
+                customers.add(new Customer(id, "customer-" + id));
+            }
+            List<SaveOutcome> outcomes = customerService.saveAll(customers);
+            assertEquals(100, outcomes.size());
+            assertTrue(outcomes.stream().allMatch(outcome -> outcome == SaveOutcome.SAVED));
+            assertEquals(100, customerService.findAll().size());
+
+            customers.replaceAll(customer -> new Customer(customer.id(), customer.name().toUpperCase()));
+            customers.add(new Customer(101L, "customer-101"));
+            assertEquals(101, customerService.saveAll(customers).size());
+            assertEquals(SaveOutcome.SAVED, customerService.save(new Customer(102L, "customer-102")));
+
+            Collection<Customer> saved = customerService.findAll();
+            assertEquals(102, saved.size());
+            assertTrue(saved.contains(new Customer(50L, "CUSTOMER-50")));
+        }
+    }
+
+    @Test
+    void mysqlUpdateCountsMapToOutcomes() {
+        assertEquals(CustomerService.UpsertDialect.MYSQL, CustomerService.UpsertDialect.of("MySQL"));
+        assertEquals(SaveOutcome.INSERTED, CustomerService.UpsertDialect.MYSQL.outcome(1));
+        assertEquals(SaveOutcome.UPDATED, CustomerService.UpsertDialect.MYSQL.outcome(2));
+        assertEquals(SaveOutcome.UNCHANGED, CustomerService.UpsertDialect.MYSQL.outcome(0));
+        assertEquals(SaveOutcome.SAVED, CustomerService.UpsertDialect.MYSQL.outcome(Statement.SUCCESS_NO_INFO));
+    }
+
+    @Test
+    void rewriteBatchedStatementsOnlyForMysql() {
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("batch",
+                Map.of("datasource.rewrite-batched-statements", true)));
+
+        assertEquals("jdbc:mysql://127.0.0.1:3306/mydatabase?rewriteBatchedStatements=true",
+                rewriteBatchedStatements(environment, "jdbc:mysql://127.0.0.1:3306/mydatabase"));
+        assertEquals("jdbc:mysql://127.0.0.1:3306/mydatabase?useSSL=false&rewriteBatchedStatements=true",
+                rewriteBatchedStatements(environment, "jdbc:mysql://127.0.0.1:3306/mydatabase?useSSL=false"));
+        assertEquals("jdbc:h2:mem:test", rewriteBatchedStatements(environment, "jdbc:h2:mem:test"));
+        assertEquals("jdbc:mysql://127.0.0.1:3306/mydatabase",
+                rewriteBatchedStatements(new StandardEnvironment(), "jdbc:mysql://127.0.0.1:3306/mydatabase"));
+    }
+
+    @Test
+    void useCursorFetchOnlyForMysql() {
+        assertEquals("jdbc:mysql://127.0.0.1:3306/mydatabase?useCursorFetch=true",
+                useCursorFetch("jdbc:mysql://127.0.0.1:3306/mydatabase"));
+        assertEquals("jdbc:mysql://127.0.0.1:3306/mydatabase?rewriteBatchedStatements=true&useCursorFetch=true",
+                useCursorFetch("jdbc:mysql://127.0.0.1:3306/mydatabase?rewriteBatchedStatements=true"));
+        assertEquals("jdbc:mysql://127.0.0.1:3306/mydatabase?useCursorFetch=false",
+                useCursorFetch("jdbc:mysql://127.0.0.1:3306/mydatabase?useCursorFetch=false"));
+        assertEquals("jdbc:h2:mem:test", useCursorFetch("jdbc:h2:mem:test"));
+    }
+
+    @Test
+    void findByIdIsCachedAndInvalidatedOnWrite() {
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(100)) {
+            CustomerService customerService = applicationContext.getBean(CustomerService.class);
+
+            assertEquals(Optional.of(new Customer(42L, "customer-42")), customerService.findById(42L));
+            assertEquals(Optional.of(new Customer(42L, "customer-42")), customerService.findById(42L));
+            assertEquals(Optional.empty(), customerService.findById(1000L));
+            assertEquals(1, customerService.cacheStats().hitCount());
+            assertEquals(2, customerService.cacheStats().missCount());
+
+            customerService.save(new Customer(42L, "renamed"));
+            assertEquals(Optional.of(new Customer(42L, "renamed")), customerService.findById(42L));
+            customerService.saveAll(List.of(new Customer(42L, "renamed again"), new Customer(1000L, "customer-1000")));
+            assertEquals(Optional.of(new Customer(42L, "renamed again")), customerService.findById(42L));
+            assertEquals(Optional.of(new Customer(1000L, "customer-1000")), customerService.findById(1000L));
+            assertEquals(1, customerService.cacheStats().hitCount());
+        }
+    }
+
+    @Test
+    void findByIdCacheIsBounded() {
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("cache",
+                Map.of("customers.cache-spec", "maximumSize=10")));
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(environment, 100)) {
+            CustomerService customerService = applicationContext.getBean(CustomerService.class);
+
+            for (long id = 1; id <= 100; id++) {
+                customerService.findById(id);
+            }
+            // Caffeine evicts on a maintenance pass that may lag behind the writes
+            Awaitility.await().until(() -> customerService.cacheStats().evictionCount() >= 90);
+        }
+    }
+
+    @Test
+    void findAllColumns() {
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(5000)) {
+            CustomerService customerService = applicationContext.getBean(CustomerService.class);
+            customerService.setFetchSize(100);
+
+            CustomerColumns columns = customerService.findAllColumns();
+            assertEquals(5000, columns.size());
+            for (int i = 0; i < columns.size(); i++) {
+                assertEquals(i + 1, columns.id(i));
+                assertEquals("customer-" + (i + 1), columns.name(i));
+            }
+            assertEquals(new Customer(5000L, "customer-5000"), columns.get(4999));
+        }
+    }
+
+    @Test
+    void customerRowMapperResolvesColumnsPerResultSet() throws SQLException {
+        SimpleResultSet nameFirst = new SimpleResultSet();
+        nameFirst.addColumn("name", Types.VARCHAR, 255, 0);
+        nameFirst.addColumn("id", Types.BIGINT, 19, 0);
+        nameFirst.addRow("first", 1L);
+        SimpleResultSet idFirst = new SimpleResultSet();
+        idFirst.addColumn("id", Types.BIGINT, 19, 0);
+        idFirst.addColumn("name", Types.VARCHAR, 255, 0);
+        idFirst.addRow(2L, "second");
+
+        CustomerRowMapper rowMapper = new CustomerRowMapper();
+        nameFirst.next();
+        assertEquals(new Customer(1L, "first"), rowMapper.mapRow(nameFirst, 0));
+        idFirst.next();
+        assertEquals(new Customer(2L, "second"), rowMapper.mapRow(idFirst, 0));
+    }
+
+    @Test
+    void scanAllSeesEveryCustomerOnce() {
+        int rows = 100_000;
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(pooled(4), rows)) {
+            CustomerService customerService = applicationContext.getBean(CustomerService.class);
+            // holes in the id range leave some partitions sparse or empty
+            applicationContext.getBean(JdbcTemplate.class).update("delete from customers where id between 1000 and 20000");
+
+            BitSet seen = new BitSet(rows + 1);
+            AtomicLong count = new AtomicLong();
+            customerService.scanAll(16, 4, 64, customer -> {
+                assertFalse(seen.get(customer.id().intValue()), "seen twice: " + customer);
+                seen.set(customer.id().intValue());
+                count.incrementAndGet();
+            });
+
+            assertEquals(rows - 19_001, count.get());
+            assertEquals(rows - 19_001, seen.cardinality());
+            assertFalse(seen.get(1000));
+            assertTrue(seen.get(rows));
+        }
+    }
+
+    @Test
+    void scanAllStopsReadersWhenTheConsumerFails() {
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(pooled(4), 10_000)) {
+            CustomerService customerService = applicationContext.getBean(CustomerService.class);
+            HikariDataSource dataSource = (HikariDataSource) applicationContext.getBean(JdbcTemplate.class).getDataSource();
+
+            AtomicLong count = new AtomicLong();
+            assertThrows(IllegalStateException.class, () -> customerService.scanAll(8, 4, 16, customer -> {
+                if (count.incrementAndGet() == 100) {
+                    throw new IllegalStateException("consumer failed");
+                }
+            }));
+            Awaitility.await().until(() -> dataSource.getHikariPoolMXBean().getActiveConnections() == 0);
+        }
+    }
+
+    @Test
+    void scanAllFailsWhenAReaderThrowsAnError() {
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(100)) {
+            JdbcTemplate jdbcTemplate = applicationContext.getBean(JdbcTemplate.class);
+            JdbcTemplate failingTemplate = new JdbcTemplate(jdbcTemplate.getDataSource()) {
+                @Override
+                public <T> Stream<T> queryForStream(PreparedStatementCreator psc, RowMapper<T> rowMapper) {
+                    throw new LinkageError("driver class went missing");
+                }
+            };
+            CustomerService customerService = new CustomerService(JdbcClient.create(jdbcTemplate), failingTemplate);
+
+            // used to wait forever for the partitions whose reader died
+            assertTimeoutPreemptively(Duration.ofSeconds(10),
+                    () -> assertThrows(LinkageError.class, () -> customerService.scanAll(4, 2, 16, customer -> {
+                    })));
+        }
+    }
+
+    @Test
+    void asyncCallsFallBackToPlatformThreads() throws Exception {
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("async",
+                Map.of("customers.virtual-threads", true)));
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(environment, 10)) {
+            CustomerService customerService = applicationContext.getBean(CustomerService.class);
+
+            assertEquals(Runtime.version().feature() >= 21,
+                    applicationContext.getBean("customerExecutor") instanceof SimpleAsyncTaskExecutor);
+            assertEquals(10, customerService.findAllAsync().get().size());
+            assertEquals(Optional.of(new Customer(3L, "customer-3")), customerService.findByIdAsync(3L).get());
+        }
+    }
+
+    @Test
+    void thousandsOfSlowQueriesOnVirtualThreads() {
+        assumeTrue(Runtime.version().feature() >= 21, "virtual threads need Java 21");
+
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("async", Map.of(
+                "customers.virtual-threads", true)));
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(environment, 10)) {
+            // every statement from here on takes 200ms longer, as against a remote database
+            JdbcTemplate jdbcTemplate = applicationContext.getBean(JdbcTemplate.class);
+            jdbcTemplate.setDataSource(
+                    new LatencyInjectingDataSource(jdbcTemplate.getDataSource(), Duration.ofMillis(200)));
+            CustomerService customerService = applicationContext.getBean(CustomerService.class);
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            threads.resetPeakThreadCount();
+
+            long start = System.nanoTime();
+            List<CompletableFuture<Collection<Customer>>> all = new ArrayList<>();
+            List<CompletableFuture<Optional<Customer>>> byId = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                all.add(customerService.findAllAsync());
+                byId.add(customerService.findByIdAsync(7L));
+            }
+            all.forEach(customers -> assertEquals(10, customers.join().size()));
+            byId.forEach(customer -> assertEquals(Optional.of(new Customer(7L, "customer-7")), customer.join()));
+            Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+            System.out.println("2000 slow findAll calls took " + elapsed + ", peak platform threads "
+                    + threads.getPeakThreadCount());
+
+            // 2000 x 200ms one after the other is over six minutes, 16 platform threads would need 25 seconds
+            assertTrue(elapsed.compareTo(Duration.ofSeconds(10)) < 0, "took " + elapsed);
+            assertTrue(threads.getPeakThreadCount() < 200, "peak threads " + threads.getPeakThreadCount());
+            // concurrent misses on one id share a single load
+            assertEquals(1, customerService.cacheStats().missCount());
+        }
+    }
+
+    @Test
+    void startupProfileTimesEveryBean() {
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("startup",
+                Map.of("context.startup-profile", "report")));
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(environment, 10)) {
+            ProfilingApplicationStartup startup = (ProfilingApplicationStartup) applicationContext.getApplicationStartup();
+            Map<String, ProfilingApplicationStartup.BeanTiming> timings = startup.timings().stream()
+                    .collect(Collectors.toMap(ProfilingApplicationStartup.BeanTiming::beanName, Function.identity()));
+
+            assertTrue(timings.keySet().containsAll(
+                    List.of("driver", "jdbcTemplate", "jdbcClient", "customerService")));
+            ProfilingApplicationStartup.BeanTiming customerService = timings.get("customerService");
+            // afterPropertiesSet builds the cache
+            assertTrue(customerService.init().compareTo(Duration.ZERO) > 0);
+            assertTrue(customerService.self().compareTo(customerService.init()) >= 0);
+        }
+    }
+
+    @Test
+    void startupProfileSeparatesDependencies() {
+        ProfilingApplicationStartup startup = new ProfilingApplicationStartup(ApplicationStartup.DEFAULT);
+        DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        beanFactory.setApplicationStartup(startup);
+        beanFactory.addBeanPostProcessor(startup.initTimer());
+
+        // registered first, so "slow" is created while resolving its constructor argument
+        RootBeanDefinition holderBeanDefinition = new RootBeanDefinition(AtomicReference.class);
+        holderBeanDefinition.getConstructorArgumentValues().addGenericArgumentValue(new RuntimeBeanReference("slow"));
+        beanFactory.registerBeanDefinition("holder", holderBeanDefinition);
+        beanFactory.registerBeanDefinition("slow", new RootBeanDefinition(String.class, sleeping(200, "slow")));
+        beanFactory.preInstantiateSingletons();
+
+        List<ProfilingApplicationStartup.BeanTiming> timings = startup.timings();
+        assertEquals(List.of("slow", "holder"),
+                timings.stream().map(ProfilingApplicationStartup.BeanTiming::beanName).toList());
+        assertTrue(timings.get(0).self().toMillis() >= 200);
+        assertTrue(timings.get(1).dependencies().compareTo(timings.get(0).total()) >= 0);
+    }
+
+    @Test
+    void startupProfileRecordsFlightRecorderEvents() throws IOException {
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("startup",
+                Map.of("context.startup-profile", "jfr")));
+        Path dump = Files.createTempFile("startup", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("org.springframework.core.metrics.jfr.FlightRecorderStartupEvent");
+            recording.start();
+            createEmbeddedApplicationContext(environment, 10).close();
+            recording.stop();
+            recording.dump(dump);
+
+            List<String> beans = RecordingFile.readAllEvents(dump).stream()
+                    .filter(event -> event.getString("name").equals("spring.beans.instantiate"))
+                    .map(event -> event.getString("tags"))
+                    .toList();
+            assertTrue(beans.stream().anyMatch(tags -> tags.contains("customerService")), beans.toString());
+        } finally {
+            Files.delete(dump);
+        }
+    }
+
+    @Test
+    void lazyInitCreatesOnlyWhatIsUsed() {
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("lazy", Map.of("context.lazy-init", true)));
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(environment, 10)) {
+            ConfigurableListableBeanFactory beanFactory = applicationContext.getBeanFactory();
+            // the embedded setup itself uses the template and with it the driver
+            assertTrue(beanFactory.containsSingleton("jdbcTemplate"));
+            assertFalse(beanFactory.containsSingleton("customerService"));
+            // only registered once customers.async is set
+            assertFalse(beanFactory.containsBeanDefinition("customerExecutor"));
+
+            assertEquals(10, applicationContext.getBean(CustomerService.class).findAll().size());
+            assertTrue(beanFactory.containsSingleton("customerService"));
+        }
+    }
+
+    @Test
+    void parallelInitCreatesIndependentBeansConcurrently() {
+        ParallelInitializingBeanFactory beanFactory = new ParallelInitializingBeanFactory(4);
+        ManagedList<RuntimeBeanReference> slowBeans = new ManagedList<>();
+        for (int i = 0; i < 8; i++) {
+            beanFactory.registerBeanDefinition("slow" + i, new RootBeanDefinition(String.class, sleeping(200, "slow" + i)));
+            slowBeans.add(new RuntimeBeanReference("slow" + i));
+        }
+        // registered first, created last
+        RootBeanDefinition allBeanDefinition = new RootBeanDefinition(ArrayList.class);
+        allBeanDefinition.getConstructorArgumentValues().addGenericArgumentValue(slowBeans);
+        beanFactory.registerBeanDefinition("all", allBeanDefinition);
+
+        long start = System.nanoTime();
+        beanFactory.preInstantiateSingletons();
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        // two rounds of four, one after another would be 1600ms
+        assertTrue(elapsed.toMillis() < 1000, "took " + elapsed);
+        assertEquals(List.of("slow0", "slow1", "slow2", "slow3", "slow4", "slow5", "slow6", "slow7"),
+                beanFactory.getBean("all"));
+    }
+
+    @Test
+    void parallelInitReportsFailuresDeterministically() {
+        for (int run = 0; run < 5; run++) {
+            ParallelInitializingBeanFactory beanFactory = new ParallelInitializingBeanFactory(4);
+            beanFactory.registerBeanDefinition("fine", new RootBeanDefinition(String.class, sleeping(20, "fine")));
+            beanFactory.registerBeanDefinition("late", new RootBeanDefinition(String.class, () -> {
+                throw new IllegalStateException("late failed");
+            }));
+            RootBeanDefinition dependentBeanDefinition = new RootBeanDefinition(AtomicReference.class);
+            dependentBeanDefinition.setDependsOn("early");
+            beanFactory.registerBeanDefinition("dependent", dependentBeanDefinition);
+            // fails after "late" but is registered before it
+            beanFactory.registerBeanDefinition("early", new RootBeanDefinition(String.class, () -> {
+                sleeping(50, null).get();
+                throw new IllegalStateException("early failed");
+            }));
+
+            BeanCreationException failure = assertThrows(BeanCreationException.class,
+                    beanFactory::preInstantiateSingletons);
+            assertEquals("late", failure.getBeanName());
+            assertTrue(failure.getMessage().contains("failed for [late, early], skipped [dependent]"),
+                    failure.getMessage());
+            assertEquals(1, failure.getSuppressed().length);
+            assertTrue(beanFactory.containsSingleton("fine"));
+        }
+    }
+
+    @Test
+    void parallelInitOfTheApplicationContext() {
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("parallel",
+                Map.of("context.parallel-init", 4)));
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(environment, 10)) {
+            assertEquals(10, applicationContext.getBean(CustomerService.class).findAll().size());
+        }
+    }
+
+    @Test
+    void parallelInitWaitsForBeansAskedForOutsideTheDefinitions() {
+        ParallelInitializingBeanFactory beanFactory = new ParallelInitializingBeanFactory(2);
+        AtomicInteger created = new AtomicInteger();
+        beanFactory.registerBeanDefinition("slow", new RootBeanDefinition(String.class, () -> {
+            created.incrementAndGet();
+            return sleeping(200, "slow").get();
+        }));
+        // no reference in the definition, both start at once and this one asks for "slow" while it is created
+        beanFactory.registerBeanDefinition("lookup", new RootBeanDefinition(String.class,
+                () -> sleeping(50, "lookup of ").get() + beanFactory.getBean("slow")));
+
+        beanFactory.preInstantiateSingletons();
+
+        assertEquals("lookup of slow", beanFactory.getBean("lookup"));
+        assertEquals(1, created.get());
+    }
+
+    static <T> Supplier<T> sleeping(long millis, T value) {
+        return () -> {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return value;
+        };
+    }
+
+    @Test
+    void snapshotSkipsConstructorResolutionOnTheNextBoot() throws IOException {
+        Path snapshot = Files.createTempFile("beans", ".snapshot");
+        Files.delete(snapshot);
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("snapshot",
+                Map.of("context.snapshot", snapshot.toString())));
+        try {
+            createEmbeddedApplicationContext(environment, 10).close();
+            assertTrue(Files.exists(snapshot));
+
+            try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(environment, 10)) {
+                ConfigurableListableBeanFactory beanFactory = applicationContext.getBeanFactory();
+                for (String beanName : List.of("driver", "jdbcTemplate", "jdbcClient", "customerService")) {
+                    assertTrue(((AbstractBeanDefinition) beanFactory.getBeanDefinition(beanName))
+                            .getInstanceSupplier() instanceof BeanInstanceSupplier<?>, beanName);
+                }
+                BeanDefinition datasource = (BeanDefinition) beanFactory.getBeanDefinition("jdbcTemplate")
+                        .getConstructorArgumentValues().getGenericArgumentValues().get(0).getValue();
+                assertTrue(((AbstractBeanDefinition) datasource).getInstanceSupplier() instanceof BeanInstanceSupplier<?>);
+
+                CustomerService customerService = applicationContext.getBean(CustomerService.class);
+                assertEquals(10, customerService.findAll().size());
+                assertEquals(Optional.of(new Customer(1L, "customer-1")), customerService.findById(1L));
+            }
+        } finally {
+            Files.deleteIfExists(snapshot);
+        }
+    }
+
+    @Test
+    void snapshotIgnoresDefinitionsThatChanged() throws IOException {
+        DefaultListableBeanFactory original = new DefaultListableBeanFactory();
+        RootBeanDefinition beanDefinition = new RootBeanDefinition(AtomicReference.class);
+        beanDefinition.getConstructorArgumentValues().addGenericArgumentValue("value");
+        original.registerBeanDefinition("bean", beanDefinition);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BeanDefinitionSnapshot.capture(original).write(new DataOutputStream(bytes));
+        BeanDefinitionSnapshot snapshot = BeanDefinitionSnapshot.read(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), getClass().getClassLoader());
+        assertEquals(1, snapshot.size());
+
+        DefaultListableBeanFactory changed = new DefaultListableBeanFactory();
+        RootBeanDefinition changedDefinition = new RootBeanDefinition(Optional.class);
+        changedDefinition.setFactoryMethodName("of");
+        changedDefinition.getConstructorArgumentValues().addGenericArgumentValue("value");
+        changed.registerBeanDefinition("bean", changedDefinition);
+        assertEquals(0, snapshot.applyTo(changed));
+        assertEquals(Optional.of("value"), changed.getBean("bean"));
+
+        DefaultListableBeanFactory same = new DefaultListableBeanFactory();
+        RootBeanDefinition sameDefinition = new RootBeanDefinition(AtomicReference.class);
+        sameDefinition.getConstructorArgumentValues().addGenericArgumentValue("value");
+        same.registerBeanDefinition("bean", sameDefinition);
+        assertEquals(1, snapshot.applyTo(same));
+        assertEquals("value", ((AtomicReference<?>) same.getBean("bean")).get());
+
+        DefaultListableBeanFactory converting = new DefaultListableBeanFactory();
+        RootBeanDefinition convertingDefinition = new RootBeanDefinition(AtomicLong.class);
+        convertingDefinition.getConstructorArgumentValues().addGenericArgumentValue("42");
+        converting.registerBeanDefinition("bean", convertingDefinition);
+        assertEquals(0, BeanDefinitionSnapshot.capture(converting).applyTo(converting));
+        assertEquals(42, ((AtomicLong) converting.getBean("bean")).get());
+    }
+
+    @Test
+    void findAllWithCallback() {
+        int rows = 10_000;
+        try (ConfigurableApplicationContext applicationContext = createEmbeddedApplicationContext(rows)) {
+            CustomerService customerService = applicationContext.getBean(CustomerService.class);
+
+            AtomicLong seen = new AtomicLong();
+            customerService.findAll(100, customer -> seen.incrementAndGet());
+            assertEquals(rows, seen.get());
+        }
+    }
 }
 
 class CustomerService implements InitializingBean {
     private final JdbcClient jdbcClient;
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * rows fetched per round trip when streaming, MySQL Connector/J only honours it with useCursorFetch=true on
+     * the url, which the application context adds
+     */
+    private int fetchSize = 1000;
+
+    /**
+     * rows a {@link #scanAll} reader hands over at once, so the queue is not contended per row
+     */
+    private static final int SCAN_CHUNK_SIZE = 256;
+
+    /**
+     * rows sent per JDBC batch by {@link #saveAll}
+     */
+    private int batchSize = 500;
+
+    private volatile UpsertDialect upsertDialect;
 
-    CustomerService(JdbcClient jdbcClient) {
+    /**
+     * a Caffeine spec for the {@link #findById} cache, W-TinyLFU bounded by size and expiring after write
+     */
+    private String cacheSpec = "maximumSize=10000,expireAfterWrite=5m";
+
+    private AsyncLoadingCache<Long, Customer> customersById;
+
+    /**
+     * runs the {@code *Async} methods
+     */
+    private Executor asyncExecutor = Runnable::run;
+
+    /**
+     * whether {@link #asyncExecutor} starts virtual threads, which must not block inside the cache's compute lock
+     */
+    private boolean virtualThreads;
+
+    CustomerService(JdbcClient jdbcClient, JdbcTemplate jdbcTemplate) {
         this.jdbcClient = jdbcClient;
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public void setCacheSpec(String cacheSpec) {
+        this.cacheSpec = cacheSpec;
+    }
+
+    public void setAsyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public void setBatchSize(int batchSize) {
+        Assert.isTrue(batchSize > 0, "batchSize must be positive");
+        this.batchSize = batchSize;
     }
 
     Collection<Customer> findAll() {
         return jdbcClient.sql("select * from customers")
-                .query((rs, rowNum) -> new Customer(rs.getLong("id"), rs.getString("name")))
+                .query(new CustomerRowMapper())
                 .list();
     }
 
+    /**
+     * the customer with this id, served from the cache once read; writes through this service invalidate it
+     */
+    Optional<Customer> findById(Long id) {
+        try {
+            return Optional.ofNullable(customersById.get(id).join());
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    /**
+     * hits, misses and evictions of the {@link #findById} cache
+     */
+    CacheStats cacheStats() {
+        return customersById.synchronous().stats();
+    }
+
+    /**
+     * {@link #findAll()} on the async executor
+     */
+    CompletableFuture<Collection<Customer>> findAllAsync() {
+        return CompletableFuture.supplyAsync(this::findAll, asyncExecutor);
+    }
+
+    /**
+     * {@link #findById} without blocking the caller, a cache hit completes immediately
+     */
+    CompletableFuture<Optional<Customer>> findByIdAsync(Long id) {
+        if (virtualThreads) {
+            // misses already load on a virtual thread of their own
+            return customersById.get(id).thenApply(Optional::ofNullable);
+        }
+        return CompletableFuture.supplyAsync(() -> findById(id), asyncExecutor);
+    }
+
+    private Customer loadById(Long id) {
+        return jdbcClient.sql("select id, name from customers where id = :id")
+                .param("id", id)
+                .query(new CustomerRowMapper())
+                .optional()
+                .orElse(null);
+    }
+
+    /**
+     * up to {@code size} customers ordered by id, starting after {@code afterId} ({@code null} for the first page);
+     * seeking on the primary key keeps a deep page as cheap as the first one, unlike an offset
+     */
+    CustomerPage findPage(Long afterId, int size) {
+        Assert.isTrue(size > 0, "size must be positive");
+        List<Customer> customers = afterId == null
+                ? jdbcClient.sql("select id, name from customers order by id limit :size")
+                    .param("size", size)
+                    .query(new CustomerRowMapper())
+                    .list()
+                : jdbcClient.sql("select id, name from customers where id > :afterId order by id limit :size")
+                    .param("afterId", afterId)
+                    .param("size", size)
+                    .query(new CustomerRowMapper())
+                    .list();
+        Long nextCursor = customers.size() < size ? null : customers.get(customers.size() - 1).id();
+        return new CustomerPage(customers, nextCursor);
+    }
+
+    /**
+     * every customer, read lazily over a forward-only cursor; the stream holds a connection until it is closed
+     */
+    Stream<Customer> streamAll() {
+        return streamAll(fetchSize);
+    }
+
+    Stream<Customer> streamAll(int fetchSize) {
+        return jdbcTemplate.queryForStream(findAllStatement(fetchSize), new CustomerRowMapper());
+    }
+
+    /**
+     * every customer handed to {@code consumer} as it is read, the connection is released on return
+     */
+    void findAll(int fetchSize, Consumer<? super Customer> consumer) {
+        CustomerRowMapper rowMapper = new CustomerRowMapper();
+        jdbcTemplate.query(findAllStatement(fetchSize),
+                (RowCallbackHandler) rs -> consumer.accept(rowMapper.mapRow(rs, rs.getRow())));
+    }
+
+    /**
+     * every customer read into primitive columns, for bulk reads that do not need a {@link Customer} per row
+     */
+    CustomerColumns findAllColumns() {
+        return jdbcTemplate.query(findAllStatement(fetchSize), CustomerColumns.extractor(fetchSize));
+    }
+
+    /**
+     * every customer, read by {@code parallelism} threads that each scan some of {@code partitions} id ranges on
+     * their own connection; rows reach {@code consumer} on the calling thread in chunks through a queue holding
+     * about {@code bufferSize} rows, and a full queue stalls the readers so a slow consumer bounds memory
+     */
+    void scanAll(int partitions, int parallelism, int bufferSize, Consumer<? super Customer> consumer) {
+        Assert.isTrue(partitions > 0 && parallelism > 0 && bufferSize > 0,
+                "partitions, parallelism and bufferSize must be positive");
+        Map<String, Object> range = jdbcClient.sql("select min(id) lo, max(id) hi from customers").query().singleRow();
+        if (range.get("lo") == null) {
+            return;
+        }
+        long lo = ((Number) range.get("lo")).longValue();
+        long hi = ((Number) range.get("hi")).longValue();
+        long step = Math.max(1, (hi - lo) / partitions + 1);
+
+        int chunkSize = Math.min(SCAN_CHUNK_SIZE, bufferSize);
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(Math.max(1, bufferSize / chunkSize));
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new CustomizableThreadFactory("scan-"));
+        int submitted = 0;
+        try {
+            for (int partition = 0; partition < partitions && lo + partition * step <= hi; partition++) {
+                long from = lo + partition * step;
+                long to = Math.min(hi, from + step - 1);
+                executor.execute(() -> scanPartition(from, to, chunkSize, queue));
+                submitted++;
+            }
+
+            for (int done = 0; done < submitted; ) {
+                Object next = queue.take();
+                if (next instanceof Customer[] chunk) {
+                    for (Customer customer : chunk) {
+                        consumer.accept(customer);
+                    }
+                } else if (next instanceof PartitionDone partitionDone) {
+                    if (partitionDone.failure() instanceof RuntimeException failure) {
+                        throw failure;
+                    } else if (partitionDone.failure() instanceof Error failure) {
+                        throw failure;
+                    } else if (partitionDone.failure() != null) {
+                        throw new IllegalStateException("could not scan customers", partitionDone.failure());
+                    }
+                    done++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while scanning customers", e);
+        } finally {
+            // readers still blocked on a full queue are interrupted out of it
+            executor.shutdownNow();
+        }
+    }
+
+    private void scanPartition(long from, long to, int chunkSize, BlockingQueue<Object> queue) {
+        Throwable failure = null;
+        try (Stream<Customer> customers = jdbcTemplate.queryForStream(connection -> {
+            PreparedStatement ps = connection.prepareStatement(
+                    "select id, name from customers where id between ? and ?",
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setLong(1, from);
+            ps.setLong(2, to);
+            ps.setFetchSize(fetchSize);
+            return ps;
+        }, new CustomerRowMapper())) {
+            Iterator<Customer> iterator = customers.iterator();
+            List<Customer> chunk = new ArrayList<>(chunkSize);
+            while (iterator.hasNext()) {
+                chunk.add(iterator.next());
+                if (chunk.size() == chunkSize || !iterator.hasNext()) {
+                    queue.put(chunk.toArray(Customer[]::new));
+                    chunk.clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            // the scan was abandoned, nobody is waiting for this partition
+            return;
+        } catch (Throwable e) {
+            // errors too, scanAll waits for every partition to be done
+            failure = e;
+        }
+        try {
+            queue.put(new PartitionDone(failure));
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private record PartitionDone(Throwable failure) {
+
+    }
+
+    private static PreparedStatementCreator findAllStatement(int fetchSize) {
+        return connection -> {
+            PreparedStatement ps = connection.prepareStatement("select id, name from customers",
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(fetchSize);
+            return ps;
+        };
+    }
+
+    /**
+     * insert or update one customer by id
+     */
+    SaveOutcome save(Customer customer) {
+        Assert.notNull(customer.id(), "customer id must not be null");
+        UpsertDialect dialect = upsertDialect();
+        try {
+            return dialect.outcome(jdbcTemplate.update(dialect.sql, customer.id(), customer.name()));
+        } finally {
+            customersById.synchronous().invalidate(customer.id());
+        }
+    }
+
+    /**
+     * insert or update customers by id in JDBC batches of {@link #setBatchSize batchSize} rows, returning what
+     * happened to each of them in iteration order
+     */
+    List<SaveOutcome> saveAll(Collection<Customer> customers) {
+        customers.forEach(customer -> Assert.notNull(customer.id(), "customer id must not be null"));
+        UpsertDialect dialect = upsertDialect();
+        int[][] updateCounts;
+        try {
+            updateCounts = jdbcTemplate.batchUpdate(dialect.sql, customers, batchSize, (ps, customer) -> {
+                ps.setLong(1, customer.id());
+                ps.setString(2, customer.name());
+            });
+        } finally {
+            // a failed batch may still have written some rows
+            customersById.synchronous().invalidateAll(customers.stream().map(Customer::id).toList());
+        }
+
+        List<SaveOutcome> outcomes = new ArrayList<>(customers.size());
+        for (int[] batch : updateCounts) {
+            for (int updateCount : batch) {
+                outcomes.add(dialect.outcome(updateCount));
+            }
+        }
+        return outcomes;
+    }
+
+    private UpsertDialect upsertDialect() {
+        UpsertDialect dialect = upsertDialect;
+        if (dialect == null) {
+            String product = jdbcTemplate.execute(
+                    (ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName());
+            dialect = upsertDialect = UpsertDialect.of(product);
+        }
+        return dialect;
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         System.out.println("afterPropertiesSet...");
+        // a load runs inside the cache's compute, which holds a monitor: on the calling thread that is what a
+        // synchronous cache does, but a virtual thread would pin its carrier for the whole query, so with virtual
+        // threads the lock only guards publishing a future and the query runs on a thread of its own
+        customersById = Caffeine.from(cacheSpec)
+                .executor(virtualThreads ? asyncExecutor : Runnable::run)
+                .recordStats()
+                .buildAsync(this::loadById);
+    }
+
+    /**
+     * how to upsert a customer on a database, and how to read its update counts
+     */
+    enum UpsertDialect {
+        H2("merge into customers (id, name) key (id) values (?, ?)"),
+        MYSQL("insert into customers (id, name) values (?, ?) as new on duplicate key update name = new.name"),
+        // no upsert we know of, duplicates fail
+        GENERIC("insert into customers (id, name) values (?, ?)");
+
+        private final String sql;
+
+        UpsertDialect(String sql) {
+            this.sql = sql;
+        }
+
+        static UpsertDialect of(String databaseProductName) {
+            return switch (databaseProductName) {
+                case "H2" -> H2;
+                case "MySQL" -> MYSQL;
+                default -> GENERIC;
+            };
+        }
+
+        SaveOutcome outcome(int updateCount) {
+            if (updateCount == Statement.SUCCESS_NO_INFO) {
+                // rewritten MySQL batches report no per-row counts
+                return SaveOutcome.SAVED;
+            }
+            return switch (this) {
+                // MERGE reports 1 whether it inserted or updated
+                case H2 -> updateCount == 0 ? SaveOutcome.UNCHANGED : SaveOutcome.SAVED;
+                // 1 for an insert, 2 for an update, 0 when the row already had these values
+                case MYSQL -> updateCount == 1 ? SaveOutcome.INSERTED
+                        : updateCount == 2 ? SaveOutcome.UPDATED : SaveOutcome.UNCHANGED;
+                case GENERIC -> SaveOutcome.INSERTED;
+            };
+        }
+    }
+}
+
+/**
+ * maps customers by column index, resolved from the first row of each result set instead of looked up by name on
+ * every row; not thread-safe, use one per query
+ */
+final class CustomerRowMapper implements RowMapper<Customer> {
+    private ResultSet resolvedFor;
+    private int idColumn;
+    private int nameColumn;
+
+    @Override
+    public Customer mapRow(ResultSet rs, int rowNum) throws SQLException {
+        if (rs != resolvedFor) {
+            idColumn = rs.findColumn("id");
+            nameColumn = rs.findColumn("name");
+            resolvedFor = rs;
+        }
+        return new Customer(rs.getLong(idColumn), rs.getString(nameColumn));
+    }
+}
+
+/**
+ * customers held column by column, ids stay primitive and no {@link Customer} is created until asked for
+ */
+final class CustomerColumns {
+    private long[] ids;
+    private String[] names;
+    private int size;
+
+    CustomerColumns(int capacity) {
+        ids = new long[Math.max(capacity, 16)];
+        names = new String[ids.length];
+    }
+
+    static ResultSetExtractor<CustomerColumns> extractor(int capacity) {
+        return rs -> {
+            int idColumn = rs.findColumn("id");
+            int nameColumn = rs.findColumn("name");
+            CustomerColumns columns = new CustomerColumns(capacity);
+            while (rs.next()) {
+                columns.add(rs.getLong(idColumn), rs.getString(nameColumn));
+            }
+            return columns;
+        };
+    }
+
+    void add(long id, String name) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            names = Arrays.copyOf(names, size * 2);
+        }
+        ids[size] = id;
+        names[size] = name;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long id(int index) {
+        Objects.checkIndex(index, size);
+        return ids[index];
+    }
+
+    String name(int index) {
+        Objects.checkIndex(index, size);
+        return names[index];
+    }
+
+    Customer get(int index) {
+        return new Customer(id(index), name(index));
+    }
+}
+
+/**
+ * what {@link CustomerService#saveAll} did to a row, {@code SAVED} when the driver does not tell inserts from updates
+ */
+enum SaveOutcome {
+    INSERTED, UPDATED, UNCHANGED, SAVED
+}
+
+/**
+ * times the "spring.beans.instantiate" steps of each bean: in total, in the beans it depends on (created within
+ * its step) and in its init callbacks, as measured by {@link #initTimer()}; inner beans count towards the bean that
+ * holds them. Every step is passed on to a delegate, such as {@link FlightRecorderApplicationStartup}.
+ */
+class ProfilingApplicationStartup implements ApplicationStartup {
+    private final ApplicationStartup delegate;
+    private final AtomicLong ids = new AtomicLong();
+    private final ThreadLocal<Deque<ProfiledStep>> openSteps = ThreadLocal.withInitial(ArrayDeque::new);
+    private final Map<String, Long> initStarts = new ConcurrentHashMap<>();
+    private final Map<String, Long> initNanos = new ConcurrentHashMap<>();
+    private final Map<String, BeanTiming> timings = new ConcurrentHashMap<>();
+
+    ProfilingApplicationStartup(ApplicationStartup delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public StartupStep start(String name) {
+        Deque<ProfiledStep> steps = openSteps.get();
+        ProfiledStep step = new ProfiledStep(name, ids.incrementAndGet(), steps.peek(), delegate.start(name));
+        steps.push(step);
+        return step;
+    }
+
+    /**
+     * measures from before the first to after the last initialization callback, so it has to be the first
+     * {@link BeanPostProcessor} added to the bean factory
+     */
+    BeanPostProcessor initTimer() {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessBeforeInitialization(Object bean, String beanName) {
+                initStarts.put(beanName, System.nanoTime());
+                return bean;
+            }
+
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                Long start = initStarts.remove(beanName);
+                if (start != null) {
+                    initNanos.merge(beanName, System.nanoTime() - start, Long::sum);
+                }
+                return bean;
+            }
+        };
+    }
+
+    /**
+     * every bean created so far, the slowest on its own first
+     */
+    List<BeanTiming> timings() {
+        return timings.values().stream()
+                .sorted(Comparator.comparing(BeanTiming::self).reversed())
+                .toList();
+    }
+
+    String report() {
+        StringBuilder report = new StringBuilder(String.format("%-40s %12s %12s %12s %12s%n",
+                "bean", "total(us)", "self(us)", "deps(us)", "init(us)"));
+        for (BeanTiming timing : timings()) {
+            report.append(String.format("%-40s %12d %12d %12d %12d%n", timing.beanName(),
+                    timing.total().toNanos() / 1000, timing.self().toNanos() / 1000,
+                    timing.dependencies().toNanos() / 1000, timing.init().toNanos() / 1000));
+        }
+        return report.toString();
+    }
+
+    record BeanTiming(String beanName, Duration total, Duration dependencies, Duration init) {
+
+        /**
+         * spent creating this bean, its init callbacks included
+         */
+        Duration self() {
+            return total.minus(dependencies);
+        }
+
+        BeanTiming plus(BeanTiming other) {
+            return new BeanTiming(beanName, total.plus(other.total), dependencies.plus(other.dependencies),
+                    init.plus(other.init));
+        }
+    }
+
+    private final class ProfiledStep implements StartupStep {
+        private final String name;
+        private final long id;
+        private final ProfiledStep parent;
+        private final StartupStep delegateStep;
+        private final List<Tag> tags = new ArrayList<>();
+        private final long start = System.nanoTime();
+        private long childNanos;
+        private String beanName;
+
+        ProfiledStep(String name, long id, ProfiledStep parent, StartupStep delegateStep) {
+            this.name = name;
+            this.id = id;
+            this.parent = parent;
+            this.delegateStep = delegateStep;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public Long getParentId() {
+            return parent == null ? null : parent.id;
+        }
+
+        @Override
+        public StartupStep tag(String key, String value) {
+            if (key.equals("beanName")) {
+                beanName = value;
+            }
+            tags.add(new Tag() {
+                @Override
+                public String getKey() {
+                    return key;
+                }
+
+                @Override
+                public String getValue() {
+                    return value;
+                }
+            });
+            delegateStep.tag(key, value);
+            return this;
+        }
+
+        @Override
+        public StartupStep tag(String key, Supplier<String> value) {
+            return tag(key, value.get());
+        }
+
+        @Override
+        public Tags getTags() {
+            return tags::iterator;
+        }
+
+        @Override
+        public void end() {
+            long total = System.nanoTime() - start;
+            openSteps.get().remove(this);
+            if (parent != null) {
+                parent.childNanos += total;
+            }
+            if (name.equals("spring.beans.instantiate") && beanName != null) {
+                Long init = initNanos.remove(beanName);
+                timings.merge(beanName, new BeanTiming(beanName, Duration.ofNanos(total),
+                        Duration.ofNanos(childNanos), Duration.ofNanos(init == null ? 0 : init)), BeanTiming::plus);
+            }
+            delegateStep.end();
+        }
+    }
+}
+
+/**
+ * makes every bean definition that does not say otherwise lazy, so only what is asked for gets created;
+ * {@code setLazyInit(false)} keeps a bean eager
+ */
+class LazyByDefaultBeanFactoryPostProcessor implements BeanFactoryPostProcessor {
+
+    @Override
+    public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) throws BeansException {
+        for (String beanName : beanFactory.getBeanDefinitionNames()) {
+            if (beanFactory.getBeanDefinition(beanName) instanceof AbstractBeanDefinition beanDefinition
+                    && beanDefinition.getLazyInit() == null) {
+                beanDefinition.setLazyInit(true);
+            }
+        }
+    }
+}
+
+/**
+ * creates the eager singletons on {@code parallelism} threads, each as soon as the beans it references
+ * ({@link RuntimeBeanReference}s and depends-on, also through inner and lazy bean definitions) exist, so startup
+ * takes as long as the slowest chain instead of the sum of all beans.
+ * <p>
+ * The registry creates every singleton under one lock; a bean created here has all its references in place
+ * already, so it is created outside that lock, claimed and published under it. A thread asking for such a bean
+ * meanwhile, through a reference the definitions do not show (autowiring, an {@code ObjectProvider}, a
+ * {@code getBean} in an init method), waits for it; one that holds the lock, or that the bean itself waits for,
+ * fails instead of deadlocking, such references have to be declared with depends-on. When beans fail, those
+ * depending on them are skipped and the failure of the first registered bean is thrown with the others suppressed,
+ * however the threads ran.
+ */
+class ParallelInitializingBeanFactory extends DefaultListableBeanFactory {
+    private final int parallelism;
+
+    /**
+     * the bean a worker thread is creating outside the singleton lock
+     */
+    private final ThreadLocal<String> creatingInParallel = new ThreadLocal<>();
+
+    /**
+     * the beans being created outside the singleton lock, claimed and removed under it
+     */
+    private final Map<String, CompletableFuture<Object>> inParallel = new ConcurrentHashMap<>();
+
+    /**
+     * for a bean being created outside the singleton lock, the one it waits for
+     */
+    private final Map<String, String> waitingFor = new ConcurrentHashMap<>();
+
+    ParallelInitializingBeanFactory(int parallelism) {
+        Assert.isTrue(parallelism > 0, "parallelism must be positive");
+        this.parallelism = parallelism;
+    }
+
+    @Override
+    public void preInstantiateSingletons() throws BeansException {
+        Map<String, Set<String>> graph = new LinkedHashMap<>();
+        for (String beanName : getBeanDefinitionNames()) {
+            RootBeanDefinition beanDefinition = getMergedLocalBeanDefinition(beanName);
+            if (!beanDefinition.isAbstract() && beanDefinition.isSingleton() && !beanDefinition.isLazyInit()
+                    && !isFactoryBean(beanName)) {
+                graph.put(beanName, new LinkedHashSet<>());
+            }
+        }
+        graph.forEach((beanName, dependencies) ->
+                collectDependencies(getMergedLocalBeanDefinition(beanName), graph.keySet(), new HashSet<>(), dependencies));
+
+        List<String> order = topologicalOrder(graph);
+        if (order == null) {
+            logger.info("Circular references between eager singletons, creating them one after another");
+        } else if (!order.isEmpty()) {
+            createInParallel(graph, order);
+        }
+        // FactoryBeans, anything left over and the SmartInitializingSingleton callbacks
+        super.preInstantiateSingletons();
+    }
+
+    private void createInParallel(Map<String, Set<String>> graph, List<String> order) {
+        Map<String, CompletableFuture<Void>> created = new HashMap<>();
+        Map<String, Throwable> failures = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new CustomizableThreadFactory("init-"));
+        try {
+            for (String beanName : order) {
+                CompletableFuture<?>[] dependencies = graph.get(beanName).stream()
+                        .map(created::get)
+                        .toArray(CompletableFuture<?>[]::new);
+                created.put(beanName, CompletableFuture.allOf(dependencies).thenRunAsync(() -> {
+                    creatingInParallel.set(beanName);
+                    try {
+                        getBean(beanName);
+                    } catch (Throwable e) {
+                        failures.put(beanName, e);
+                        throw e;
+                    } finally {
+                        creatingInParallel.remove();
+                    }
+                }, executor));
+            }
+            CompletableFuture.allOf(created.values().toArray(CompletableFuture<?>[]::new))
+                    .exceptionally(e -> null)
+                    .join();
+        } finally {
+            executor.shutdown();
+        }
+
+        if (failures.isEmpty()) {
+            return;
+        }
+        List<String> failed = new ArrayList<>();
+        List<String> skipped = new ArrayList<>();
+        for (String beanName : graph.keySet()) {
+            if (failures.containsKey(beanName)) {
+                failed.add(beanName);
+            } else if (created.get(beanName).isCompletedExceptionally()) {
+                skipped.add(beanName);
+            }
+        }
+        BeanCreationException failure = new BeanCreationException(failed.get(0),
+                "Parallel initialization failed for " + failed + ", skipped " + skipped, failures.get(failed.get(0)));
+        failed.stream().skip(1).map(failures::get).forEach(failure::addSuppressed);
+        throw failure;
+    }
+
+    @Override
+    public Object getSingleton(String beanName, ObjectFactory<?> singletonFactory) {
+        String creating = creatingInParallel.get();
+        if (!beanName.equals(creating)) {
+            CompletableFuture<Object> other;
+            synchronized (getSingletonMutex()) {
+                other = inParallel.get(beanName);
+                if (other == null) {
+                    return super.getSingleton(beanName, singletonFactory);
+                }
+            }
+            return awaitParallel(beanName, other, creating);
+        }
+
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        synchronized (getSingletonMutex()) {
+            Object singleton = getSingleton(beanName, false);
+            if (singleton != null) {
+                return singleton;
+            }
+            if (isSingletonCurrentlyInCreation(beanName)) {
+                // asked for again while creating it, the registry reports the circular reference
+                return super.getSingleton(beanName, singletonFactory);
+            }
+            beforeSingletonCreation(beanName);
+            inParallel.put(beanName, result);
+        }
+        Object singleton = null;
+        try {
+            singleton = singletonFactory.getObject();
+        } catch (Throwable e) {
+            result.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (getSingletonMutex()) {
+                if (singleton != null) {
+                    addSingleton(beanName, singleton);
+                }
+                afterSingletonCreation(beanName);
+                inParallel.remove(beanName);
+            }
+        }
+        result.complete(singleton);
+        return singleton;
+    }
+
+    /**
+     * the bean another thread creates outside the singleton lock, once it is published
+     */
+    private Object awaitParallel(String beanName, CompletableFuture<Object> other, String creating) {
+        if (Thread.holdsLock(getSingletonMutex())) {
+            // the other thread needs the lock to publish it
+            throw new BeanCurrentlyInCreationException(beanName, "Created in parallel while the singleton lock is "
+                    + "held, declare the dependency with depends-on");
+        }
+        if (creating != null) {
+            waitingFor.put(creating, beanName);
+            for (String waited = beanName; waited != null; waited = waitingFor.get(waited)) {
+                if (waited.equals(creating)) {
+                    waitingFor.remove(creating);
+                    throw new BeanCurrentlyInCreationException(beanName, "Created in parallel and waiting for '"
+                            + creating + "', which needs it in turn");
+                }
+            }
+        }
+        try {
+            return other.join();
+        } catch (CompletionException e) {
+            throw new BeanCreationException(beanName, "Creating it in parallel failed", e.getCause());
+        } finally {
+            if (creating != null) {
+                waitingFor.remove(creating);
+            }
+        }
+    }
+
+    /**
+     * the beans among {@code eager} that creating {@code value} needs, looking through beans outside of it
+     */
+    private void collectDependencies(Object value, Set<String> eager, Set<String> visited, Set<String> into) {
+        if (value instanceof RuntimeBeanReference reference) {
+            String beanName = canonicalName(reference.getBeanName());
+            if (eager.contains(beanName)) {
+                into.add(beanName);
+            } else if (visited.add(beanName) && containsBeanDefinition(beanName)) {
+                collectDependencies(getMergedLocalBeanDefinition(beanName), eager, visited, into);
+            }
+        } else if (value instanceof BeanDefinitionHolder holder) {
+            collectDependencies(holder.getBeanDefinition(), eager, visited, into);
+        } else if (value instanceof BeanDefinition beanDefinition) {
+            if (beanDefinition.getDependsOn() != null) {
+                for (String dependsOn : beanDefinition.getDependsOn()) {
+                    collectDependencies(new RuntimeBeanReference(dependsOn), eager, visited, into);
+                }
+            }
+            ConstructorArgumentValues arguments = beanDefinition.getConstructorArgumentValues();
+            arguments.getIndexedArgumentValues().values()
+                    .forEach(argument -> collectDependencies(argument.getValue(), eager, visited, into));
+            arguments.getGenericArgumentValues()
+                    .forEach(argument -> collectDependencies(argument.getValue(), eager, visited, into));
+            for (PropertyValue propertyValue : beanDefinition.getPropertyValues()) {
+                collectDependencies(propertyValue.getValue(), eager, visited, into);
+            }
+        } else if (value instanceof Collection<?> values) {
+            values.forEach(element -> collectDependencies(element, eager, visited, into));
+        } else if (value instanceof Map<?, ?> map) {
+            map.forEach((key, element) -> {
+                collectDependencies(key, eager, visited, into);
+                collectDependencies(element, eager, visited, into);
+            });
+        }
+    }
+
+    /**
+     * registration order with every bean after its dependencies, {@code null} when they are circular
+     */
+    private static List<String> topologicalOrder(Map<String, Set<String>> graph) {
+        List<String> order = new ArrayList<>(graph.size());
+        Set<String> visiting = new HashSet<>();
+        Set<String> visited = new HashSet<>();
+        for (String beanName : graph.keySet()) {
+            if (!visit(beanName, graph, visiting, visited, order)) {
+                return null;
+            }
+        }
+        return order;
+    }
+
+    private static boolean visit(String beanName, Map<String, Set<String>> graph,
+                                 Set<String> visiting, Set<String> visited, List<String> order) {
+        if (visited.contains(beanName)) {
+            return true;
+        }
+        if (!visiting.add(beanName)) {
+            return false;
+        }
+        for (String dependency : graph.get(beanName)) {
+            if (!visit(dependency, graph, visiting, visited, order)) {
+                return false;
+            }
+        }
+        visiting.remove(beanName);
+        visited.add(beanName);
+        order.add(beanName);
+        return true;
+    }
+}
+
+/**
+ * the constructors and factory methods a bean factory resolved for its definitions, inner ones included, in a
+ * compact binary form; applied to the same definitions on the next boot, they become {@link BeanInstanceSupplier}s
+ * that look the executable up directly instead of weighing every candidate against the arguments again.
+ * Entries whose definition no longer matches, or whose classes are gone, are left out.
+ */
+final class BeanDefinitionSnapshot {
+    private static final int MAGIC = 0x42445331;
+    private static final byte CONSTRUCTOR = 0;
+    private static final byte FACTORY_METHOD = 1;
+
+    /**
+     * bean name, or bean name and path to an inner definition, to what instantiates it
+     */
+    private final Map<String, Executable> executables;
+
+    private BeanDefinitionSnapshot(Map<String, Executable> executables) {
+        this.executables = executables;
+    }
+
+    static BeanDefinitionSnapshot capture(ConfigurableListableBeanFactory beanFactory) {
+        Map<String, Executable> executables = new LinkedHashMap<>();
+        for (String beanName : beanFactory.getBeanDefinitionNames()) {
+            BeanDefinition beanDefinition = beanFactory.getBeanDefinition(beanName);
+            if (!beanDefinition.isAbstract() && !hasInstanceSupplier(beanDefinition)) {
+                capture(RegisteredBean.of(beanFactory, beanName), beanName, beanDefinition, executables);
+            }
+        }
+        return new BeanDefinitionSnapshot(executables);
+    }
+
+    private static void capture(RegisteredBean registeredBean, String path, BeanDefinition beanDefinition,
+                                Map<String, Executable> executables) {
+        try {
+            executables.put(path, registeredBean.resolveInstantiationDescriptor().executable());
+        } catch (RuntimeException e) {
+            // ambiguous without the actual arguments, leave it to the regular resolution
+        }
+        innerBeanDefinitions(path, beanDefinition).forEach((innerPath, innerBeanDefinition) -> {
+            if (!hasInstanceSupplier(innerBeanDefinition)) {
+                capture(RegisteredBean.ofInnerBean(registeredBean, innerBeanDefinition), innerPath, innerBeanDefinition,
+                        executables);
+            }
+        });
+    }
+
+    /**
+     * sets an instance supplier on every definition the snapshot still matches, returning how many
+     */
+    int applyTo(ConfigurableListableBeanFactory beanFactory) {
+        int applied = 0;
+        for (String beanName : beanFactory.getBeanDefinitionNames()) {
+            applied += apply(beanName, beanFactory.getBeanDefinition(beanName));
+        }
+        return applied;
+    }
+
+    private int apply(String path, BeanDefinition beanDefinition) {
+        int applied = 0;
+        Executable executable = executables.get(path);
+        if (executable != null && beanDefinition instanceof AbstractBeanDefinition definition
+                && !hasInstanceSupplier(definition) && matches(executable, definition)) {
+            definition.setInstanceSupplier(executable instanceof Method method
+                    ? BeanInstanceSupplier.forFactoryMethod(method.getDeclaringClass(), method.getName(),
+                    method.getParameterTypes())
+                    : BeanInstanceSupplier.forConstructor(executable.getParameterTypes()));
+            applied++;
+        }
+        for (Map.Entry<String, BeanDefinition> inner : innerBeanDefinitions(path, beanDefinition).entrySet()) {
+            applied += apply(inner.getKey(), inner.getValue());
+        }
+        return applied;
+    }
+
+    private static boolean matches(Executable executable, AbstractBeanDefinition definition) {
+        if (executable.getParameterCount() < definition.getConstructorArgumentValues().getArgumentCount()
+                || !convertsLiterals(executable, definition.getConstructorArgumentValues())) {
+            return false;
+        }
+        if (executable instanceof Method method) {
+            return method.getName().equals(definition.getFactoryMethodName())
+                    && (definition.getFactoryBeanName() != null
+                    || method.getDeclaringClass().getName().equals(definition.getBeanClassName())
+                    || definition.hasBeanClass() && method.getDeclaringClass().isAssignableFrom(definition.getBeanClass()));
+        }
+        return definition.getFactoryMethodName() == null
+                && executable.getDeclaringClass().getName().equals(definition.getBeanClassName());
+    }
+
+    /**
+     * an instance supplier only binds untyped literals to parameters they are assignable to, a "3" meant for an
+     * int is left to the constructor resolver which converts it
+     */
+    private static boolean convertsLiterals(Executable executable, ConstructorArgumentValues arguments) {
+        List<ConstructorArgumentValues.ValueHolder> values = new ArrayList<>(arguments.getGenericArgumentValues());
+        values.addAll(arguments.getIndexedArgumentValues().values());
+        long literals = values.stream()
+                .filter(value -> value.getType() == null && value.getName() == null)
+                .filter(value -> value.getValue() instanceof String || value.getValue() instanceof TypedStringValue)
+                .count();
+        long stringParameters = Arrays.stream(executable.getParameterTypes())
+                .filter(type -> type.isAssignableFrom(String.class))
+                .count();
+        return literals <= stringParameters;
+    }
+
+    private static boolean hasInstanceSupplier(BeanDefinition beanDefinition) {
+        return beanDefinition instanceof AbstractBeanDefinition definition && definition.getInstanceSupplier() != null;
+    }
+
+    /**
+     * inner definitions given directly as constructor arguments or property values, by their path
+     */
+    private static Map<String, BeanDefinition> innerBeanDefinitions(String path, BeanDefinition beanDefinition) {
+        Map<String, BeanDefinition> inner = new LinkedHashMap<>();
+        ConstructorArgumentValues arguments = beanDefinition.getConstructorArgumentValues();
+        arguments.getIndexedArgumentValues().forEach((index, argument) ->
+                putInner(inner, path + "/" + index, argument.getValue()));
+        List<ConstructorArgumentValues.ValueHolder> genericArguments = arguments.getGenericArgumentValues();
+        for (int i = 0; i < genericArguments.size(); i++) {
+            putInner(inner, path + "/g" + i, genericArguments.get(i).getValue());
+        }
+        for (PropertyValue propertyValue : beanDefinition.getPropertyValues()) {
+            putInner(inner, path + "/" + propertyValue.getName(), propertyValue.getValue());
+        }
+        return inner;
+    }
+
+    private static void putInner(Map<String, BeanDefinition> inner, String path, Object value) {
+        if (value instanceof BeanDefinitionHolder holder) {
+            inner.put(path, holder.getBeanDefinition());
+        } else if (value instanceof BeanDefinition beanDefinition) {
+            inner.put(path, beanDefinition);
+        }
+    }
+
+    void write(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            write(out);
+        }
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(executables.size());
+        for (Map.Entry<String, Executable> entry : executables.entrySet()) {
+            Executable executable = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeByte(executable instanceof Method ? FACTORY_METHOD : CONSTRUCTOR);
+            out.writeUTF(executable.getDeclaringClass().getName());
+            if (executable instanceof Method) {
+                out.writeUTF(executable.getName());
+            }
+            out.writeShort(executable.getParameterCount());
+            for (Class<?> parameterType : executable.getParameterTypes()) {
+                out.writeUTF(parameterType.getName());
+            }
+        }
+    }
+
+    static BeanDefinitionSnapshot read(Path path, ClassLoader classLoader) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            return read(in, classLoader);
+        }
+    }
+
+    static BeanDefinitionSnapshot read(DataInputStream in, ClassLoader classLoader) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a bean definition snapshot");
+        }
+        int size = in.readInt();
+        Map<String, Executable> executables = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            String path = in.readUTF();
+            byte kind = in.readByte();
+            String declaringClass = in.readUTF();
+            String methodName = kind == FACTORY_METHOD ? in.readUTF() : null;
+            String[] parameterTypes = new String[in.readShort()];
+            for (int p = 0; p < parameterTypes.length; p++) {
+                parameterTypes[p] = in.readUTF();
+            }
+
+            try {
+                Class<?> type = ClassUtils.forName(declaringClass, classLoader);
+                Class<?>[] parameters = new Class<?>[parameterTypes.length];
+                for (int p = 0; p < parameters.length; p++) {
+                    parameters[p] = ClassUtils.forName(parameterTypes[p], classLoader);
+                }
+                executables.put(path, methodName != null
+                        ? type.getDeclaredMethod(methodName, parameters)
+                        : type.getDeclaredConstructor(parameters));
+            } catch (ClassNotFoundException | NoSuchMethodException | LinkageError e) {
+                // the code changed since the snapshot was taken, resolve this one as usual
+            }
+        }
+        return new BeanDefinitionSnapshot(executables);
+    }
+
+    int size() {
+        return executables.size();
+    }
+}
+
+/**
+ * a datasource whose statements take {@code latency} longer to execute, standing in for a remote database
+ */
+class LatencyInjectingDataSource extends DelegatingDataSource {
+    private final Duration latency;
+
+    LatencyInjectingDataSource(DataSource target, Duration latency) {
+        super(target);
+        this.latency = latency;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return slow(super.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return slow(super.getConnection(username, password));
+    }
+
+    private Connection slow(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    Object result = invoke(connection, method, args);
+                    return result instanceof Statement statement ? slow(statement, method.getReturnType()) : result;
+                });
+    }
+
+    private Object slow(Statement statement, Class<?> statementType) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{statementType},
+                (proxy, method, args) -> {
+                    if (method.getName().startsWith("execute")) {
+                        // parks a virtual thread, blocks a platform one
+                        Thread.sleep(latency.toMillis());
+                    }
+                    return invoke(statement, method, args);
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+}
+
+/**
+ * connection wait time and occupancy of the pooled datasource, occupancy is sampled by Hikari at most once a second
+ */
+class PoolMetrics implements MetricsTrackerFactory {
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder timeouts = new LongAdder();
+    private volatile PoolStats poolStats;
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        this.poolStats = poolStats;
+        return new IMetricsTracker() {
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                acquisitions.increment();
+                waitNanos.add(elapsedAcquiredNanos);
+                maxWaitNanos.accumulate(elapsedAcquiredNanos);
+            }
+
+            @Override
+            public void recordConnectionTimeout() {
+                timeouts.increment();
+            }
+        };
+    }
+
+    long acquisitions() {
+        return acquisitions.sum();
+    }
+
+    Duration averageWait() {
+        long count = acquisitions.sum();
+        return Duration.ofNanos(count == 0 ? 0 : waitNanos.sum() / count);
+    }
+
+    Duration maxWait() {
+        return Duration.ofNanos(maxWaitNanos.get());
+    }
+
+    long timeouts() {
+        return timeouts.sum();
+    }
+
+    int activeConnections() {
+        PoolStats stats = poolStats;
+        return stats == null ? 0 : stats.getActiveConnections();
+    }
+
+    int pendingThreads() {
+        PoolStats stats = poolStats;
+        return stats == null ? 0 : stats.getPendingThreads();
+    }
+
+    @Override
+    public String toString() {
+        return "PoolMetrics{acquisitions=" + acquisitions() + ", averageWait=" + averageWait()
+                + ", maxWait=" + maxWait() + ", timeouts=" + timeouts()
+                + ", active=" + activeConnections() + ", pending=" + pendingThreads() + "}";
     }
 }
 
 record Customer(Long id, String name) {
 
 }
+
+/**
+ * a page of customers and the cursor to pass to {@link CustomerService#findPage} for the next one, {@code null}
+ * once the last page has been read
+ */
+record CustomerPage(List<Customer> customers, Long nextCursor) {
+
+    boolean hasNext() {
+        return nextCursor != null;
+    }
+}
@@ -0,0 +1,62 @@
+package com.lingfenglong.beans.a01bean;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of concurrent {@link CustomerService#findAll()} calls against an embedded H2 database, opening a
+ * connection per query ({@code pooled=false}) or borrowing one from the Hikari pool ({@code pooled=true}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class DataSourceBenchmark {
+
+    @Param({"false", "true"})
+    public boolean pooled;
+
+    @Param({"100"})
+    public int rows;
+
+    private ConfigurableApplicationContext context;
+    private CustomerService customerService;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(DataSourceBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    @Setup
+    public void setup() {
+        ApplicationTest applicationTest = new ApplicationTest();
+        context = pooled
+                ? applicationTest.createEmbeddedApplicationContext(ApplicationTest.pooled(8), rows)
+                : applicationTest.createEmbeddedApplicationContext(new StandardEnvironment(), rows);
+        customerService = context.getBean(CustomerService.class);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (pooled) {
+            System.out.println(context.getBean(PoolMetrics.class));
+        }
+        context.close();
+    }
+
+    @Benchmark
+    public Collection<Customer> findAll() {
+        return customerService.findAll();
+    }
+}
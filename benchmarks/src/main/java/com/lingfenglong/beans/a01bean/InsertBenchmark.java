@@ -0,0 +1,72 @@
+package com.lingfenglong.beans.a01bean;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rows per second written to an embedded H2 database, one {@link CustomerService#save} per row ({@code single})
+ * or one {@link CustomerService#saveAll} for all of them ({@code batched}); every invocation writes new ids.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InsertBenchmark {
+    private static final int ROWS = 1000;
+
+    @Param({"single", "batched"})
+    public String mode;
+
+    @Param({"100", "1000"})
+    public int batchSize;
+
+    private ConfigurableApplicationContext context;
+    private CustomerService customerService;
+    private long nextId;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(InsertBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    @Setup
+    public void setup() {
+        context = new ApplicationTest().createEmbeddedApplicationContext(ApplicationTest.pooled(1), 0);
+        customerService = context.getBean(CustomerService.class);
+        customerService.setBatchSize(batchSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Object insert() {
+        List<Customer> customers = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            long id = ++nextId;
+            customers.add(new Customer(id, "customer-" + id));
+        }
+
+        if (mode.equals("batched")) {
+            return customerService.saveAll(customers);
+        }
+        List<SaveOutcome> outcomes = new ArrayList<>(ROWS);
+        for (Customer customer : customers) {
+            outcomes.add(customerService.save(customer));
+        }
+        return outcomes;
+    }
+}
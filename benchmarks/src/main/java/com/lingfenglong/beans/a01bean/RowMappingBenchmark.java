@@ -0,0 +1,92 @@
+package com.lingfenglong.beans.a01bean;
+
+import org.h2.tools.SimpleResultSet;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per row of mapping an in-memory {@link SimpleResultSet} of customers: by column name as
+ * {@link CustomerService} used to ({@code byName}), with {@link CustomerRowMapper} ({@code byIndex}) and into
+ * {@link CustomerColumns} ({@code columnar}). Run with the GC profiler to compare allocation per row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowMappingBenchmark {
+    private static final int ROWS = 10_000;
+
+    private static final RowMapper<Customer> BY_NAME =
+            (rs, rowNum) -> new Customer(rs.getLong("id"), rs.getString("name"));
+
+    @Param({"2", "10"})
+    public int columns;
+
+    private SimpleResultSet resultSet;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(RowMappingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    @Setup
+    public void setup() {
+        resultSet = new SimpleResultSet();
+        resultSet.setAutoClose(false);
+        // wider rows put id and name further from the front, as in a real table
+        for (int i = 2; i < columns; i++) {
+            resultSet.addColumn("column" + i, Types.VARCHAR, 255, 0);
+        }
+        resultSet.addColumn("id", Types.BIGINT, 19, 0);
+        resultSet.addColumn("name", Types.VARCHAR, 255, 0);
+        for (long id = 1; id <= ROWS; id++) {
+            Object[] row = new Object[columns];
+            for (int i = 0; i < columns - 2; i++) {
+                row[i] = "value";
+            }
+            row[columns - 2] = id;
+            row[columns - 1] = "customer-" + id;
+            resultSet.addRow(row);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void byName(Blackhole blackhole) throws SQLException {
+        map(BY_NAME, blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void byIndex(Blackhole blackhole) throws SQLException {
+        map(new CustomerRowMapper(), blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public CustomerColumns columnar() throws SQLException {
+        resultSet.beforeFirst();
+        return CustomerColumns.extractor(ROWS).extractData(resultSet);
+    }
+
+    private void map(RowMapper<Customer> rowMapper, Blackhole blackhole) throws SQLException {
+        resultSet.beforeFirst();
+        int rowNum = 0;
+        while (resultSet.next()) {
+            blackhole.consume(rowMapper.mapRow(resultSet, rowNum++));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.lingfenglong.beans.a01bean;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to read every customer of an embedded H2 database with {@link CustomerService#scanAll} at increasing
+ * {@code parallelism}, against a single {@link CustomerService#findAll(int, java.util.function.Consumer)} pass
+ * ({@code parallelism=0}). Expect it to scale with the cores of the machine it runs on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ScanBenchmark {
+
+    @Param({"0", "1", "2", "4", "8"})
+    public int parallelism;
+
+    @Param({"1000000"})
+    public int rows;
+
+    private ConfigurableApplicationContext context;
+    private CustomerService customerService;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ScanBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    @Setup
+    public void setup() {
+        context = new ApplicationTest().createEmbeddedApplicationContext(ApplicationTest.pooled(8), rows);
+        customerService = context.getBean(CustomerService.class);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public void scan(Blackhole blackhole) {
+        if (parallelism == 0) {
+            customerService.findAll(1000, blackhole::consume);
+        } else {
+            customerService.scanAll(parallelism * 4, parallelism, 4096, blackhole::consume);
+        }
+    }
+}
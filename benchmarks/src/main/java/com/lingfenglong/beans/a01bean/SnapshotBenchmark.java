@@ -0,0 +1,123 @@
+package com.lingfenglong.beans.a01bean;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.beans.factory.config.RuntimeBeanReference;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.context.support.GenericApplicationContext;
+
+import java.io.*;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refresh time of a context with {@code beans} definitions shaped like the ones in {@link ApplicationTest}:
+ * overloaded constructors fed generic arguments, references and a static factory method. With
+ * {@code snapshot=true} the refresh first reads a {@link BeanDefinitionSnapshot} and applies it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    @Param({"1000", "10000"})
+    public int beans;
+
+    @Param({"false", "true"})
+    public boolean snapshot;
+
+    private byte[] snapshotBytes;
+    private GenericApplicationContext context;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SnapshotBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    @Setup(Level.Trial)
+    public void takeSnapshot() throws IOException {
+        DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        registerBeanDefinitions(beanFactory);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BeanDefinitionSnapshot.capture(beanFactory).write(new DataOutputStream(bytes));
+        snapshotBytes = bytes.toByteArray();
+    }
+
+    @Setup(Level.Invocation)
+    public void setup() {
+        context = new GenericApplicationContext();
+        registerBeanDefinitions(context.getDefaultListableBeanFactory());
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public GenericApplicationContext refresh() throws IOException {
+        if (snapshot) {
+            BeanDefinitionSnapshot.read(new DataInputStream(new ByteArrayInputStream(snapshotBytes)),
+                    getClass().getClassLoader()).applyTo(context.getDefaultListableBeanFactory());
+        }
+        context.refresh();
+        return context;
+    }
+
+    private void registerBeanDefinitions(DefaultListableBeanFactory beanFactory) {
+        for (int i = 0; i < beans / 2; i++) {
+            RootBeanDefinition endpointBeanDefinition = new RootBeanDefinition(Endpoint.class);
+            endpointBeanDefinition.getConstructorArgumentValues().addGenericArgumentValue("http://service-" + i);
+            endpointBeanDefinition.getConstructorArgumentValues().addGenericArgumentValue(Duration.ofSeconds(30));
+            beanFactory.registerBeanDefinition("endpoint" + i, endpointBeanDefinition);
+
+            RootBeanDefinition clientBeanDefinition = new RootBeanDefinition(Client.class);
+            if (i % 2 == 0) {
+                clientBeanDefinition.setFactoryMethodName("of");
+            }
+            clientBeanDefinition.getConstructorArgumentValues().addGenericArgumentValue(new RuntimeBeanReference("endpoint" + i));
+            clientBeanDefinition.getConstructorArgumentValues().addGenericArgumentValue("client-" + i);
+            beanFactory.registerBeanDefinition("client" + i, clientBeanDefinition);
+        }
+    }
+
+    public static class Endpoint {
+        public Endpoint(String url) {
+        }
+
+        public Endpoint(String url, int retries) {
+        }
+
+        public Endpoint(String url, Duration timeout) {
+        }
+
+        public Endpoint(String url, Duration timeout, int retries) {
+        }
+    }
+
+    public static class Client {
+        public Client(Endpoint endpoint) {
+        }
+
+        public Client(Endpoint endpoint, String name) {
+        }
+
+        public Client(Endpoint endpoint, String name, Duration timeout) {
+        }
+
+        public static Client of(Endpoint endpoint, String name) {
+            return new Client(endpoint, name);
+        }
+
+        public static Client of(Endpoint endpoint) {
+            return new Client(endpoint);
+        }
+    }
+}
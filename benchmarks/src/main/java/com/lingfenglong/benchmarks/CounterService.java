@@ -0,0 +1,37 @@
+package com.lingfenglong.benchmarks;
+
+import java.lang.annotation.*;
+
+/**
+ * The service every {@link ProxyStrategy} proxies: {@code advised} is {@link Audited} and gets the advice,
+ * {@code plain} is not. Both take and return a {@code long} so any allocation per call is the proxy's.
+ */
+public interface CounterService {
+
+    @Audited
+    long advised(long value);
+
+    long plain(long value);
+}
+
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+@interface Audited {
+
+}
+
+class DefaultCounterService implements CounterService {
+
+    // repeated for the CGLIB proxies, which see the methods of the class proxied rather than of its interfaces
+    @Audited
+    @Override
+    public long advised(long value) {
+        return value + 1;
+    }
+
+    @Override
+    public long plain(long value) {
+        return value + 1;
+    }
+}
@@ -0,0 +1,65 @@
+package com.lingfenglong.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ProxyCallBenchmark#plain()} through a call site that is not inlined, having seen only this strategy's
+ * proxy ({@code monomorphic}) or, before being compiled, the proxies of every {@link ProxyStrategy}
+ * ({@code megamorphic}), as a service called with several proxy kinds behind one interface. A megamorphic site
+ * dispatches through the itable instead of a guarded direct call; strategies that inline well lose the most.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MegamorphicCallBenchmark {
+
+    @Param
+    public ProxyStrategy strategy;
+
+    @Param({"monomorphic", "megamorphic"})
+    public String callSite;
+
+    private CounterService service;
+    private long value;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MegamorphicCallBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    @Setup
+    public void setup() {
+        CounterService target = new DefaultCounterService();
+        service = strategy.proxy(target);
+        if (callSite.equals("megamorphic")) {
+            ProxyStrategy[] strategies = ProxyStrategy.values();
+            CounterService[] services = new CounterService[strategies.length];
+            for (int i = 0; i < strategies.length; i++) {
+                services[i] = strategies[i].proxy(target);
+            }
+            // profile the call site before it is compiled
+            for (int i = 0; i < 100_000; i++) {
+                call(services[i % services.length], i);
+            }
+        }
+    }
+
+    @Benchmark
+    public long plain() {
+        return value = call(service, value);
+    }
+
+    @CompilerControl(CompilerControl.Mode.DONT_INLINE)
+    private static long call(CounterService service, long value) {
+        return service.plain(value);
+    }
+}
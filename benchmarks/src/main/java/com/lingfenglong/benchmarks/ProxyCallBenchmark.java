@@ -0,0 +1,51 @@
+package com.lingfenglong.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call overhead of each {@link ProxyStrategy}, on the {@link Audited} method the advice runs for and on the
+ * plain one, against {@link ProxyStrategy#NONE}. Run with the GC profiler for the allocation per call, argument
+ * arrays and boxing included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyCallBenchmark {
+
+    @Param
+    public ProxyStrategy strategy;
+
+    private CounterService service;
+    private long value;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ProxyCallBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    @Setup
+    public void setup() {
+        service = strategy.proxy(new DefaultCounterService());
+    }
+
+    @Benchmark
+    public long advised() {
+        return value = service.advised(value);
+    }
+
+    @Benchmark
+    public long plain() {
+        return value = service.plain(value);
+    }
+}
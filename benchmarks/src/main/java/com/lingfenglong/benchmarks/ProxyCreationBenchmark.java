@@ -0,0 +1,45 @@
+package com.lingfenglong.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of proxying one more instance with each {@link ProxyStrategy}, the proxy class being generated already: what
+ * a factory pays per bean at startup, and {@link ProxyStrategy#AUTHORIZATION} per returned object. Run with the GC
+ * profiler for the allocation per proxy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyCreationBenchmark {
+
+    @Param
+    public ProxyStrategy strategy;
+
+    private CounterService target;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ProxyCreationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    @Setup
+    public void setup() {
+        target = new DefaultCounterService();
+    }
+
+    @Benchmark
+    public CounterService proxy() {
+        return strategy.proxy(target);
+    }
+}
@@ -0,0 +1,260 @@
+package com.lingfenglong.benchmarks;
+
+import com.lingfenglong.proxies.support.AnnotatedMethods;
+import com.lingfenglong.proxies.support.MethodInvoker;
+import com.lingfenglong.proxies.support.MethodInvokers;
+import org.aopalliance.aop.Advice;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.Advisor;
+import org.springframework.aop.Pointcut;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.aop.framework.DefaultAopProxyFactory;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.support.NameMatchMethodPointcutAdvisor;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.security.authorization.method.AuthorizationAdvisor;
+import org.springframework.security.authorization.method.AuthorizationAdvisorProxyFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The ways the proxies and security modules proxy a service, each applying the same advice: count the calls of
+ * {@link Audited} methods.
+ * <p>
+ * These are stand-ins, not the modules' own handlers and post-processors: those are package-private, bound to each
+ * module's own annotation, and print on every call, which would be all a benchmark measured. Each stand-in copies
+ * its module's structure instead, with the shared {@code proxies.support} classes the module uses
+ * ({@link MethodInvoker}s bound when the proxy is made, {@link AnnotatedMethods}), the same annotation lookups per
+ * call and the same pointcuts, counting where the module prints. Keep them in step when a module changes.
+ */
+public enum ProxyStrategy {
+    /**
+     * no proxy, the baseline
+     */
+    NONE {
+        @Override
+        public CounterService proxy(CounterService target) {
+            return target;
+        }
+    },
+    /**
+     * {@link Proxy} with an {@link InvocationHandler} looking each method's descriptor up and calling the target
+     * through its bound {@link MethodInvoker}, as a01jdkproxy's {@code TransactionalInvocationHandler}
+     */
+    JDK_PROXY {
+        @Override
+        public CounterService proxy(CounterService target) {
+            return (CounterService) Proxy.newProxyInstance(target.getClass().getClassLoader(),
+                    target.getClass().getInterfaces(), new AuditingInvocationHandler(target));
+        }
+    },
+    /**
+     * {@link ProxyFactory} of the target's interfaces with one interceptor for every method, checking the
+     * annotation per call and calling the target through {@link MethodInvokers}, as a02springfactory
+     */
+    PROXY_FACTORY {
+        @Override
+        public CounterService proxy(CounterService target) {
+            ProxyFactory pf = new ProxyFactory(target);
+            pf.setInterfaces(target.getClass().getInterfaces());
+            pf.addAdvice(new AuditingInterceptor(
+                    MethodInvokers.of(MethodHandles.lookup(), target, target.getClass().getInterfaces())));
+            return (CounterService) pf.getProxy();
+        }
+    },
+    /**
+     * the proxy of {@link #PROXY_FACTORY} made by a {@link BeanPostProcessor} for beans whose class
+     * {@link AnnotatedMethods} finds {@link Audited} methods on, as a03bean's {@code MyTransactionBeanPostProcessor}
+     */
+    BEAN_POST_PROCESSOR {
+        private final BeanPostProcessor beanPostProcessor = new AuditingBeanPostProcessor();
+
+        @Override
+        public CounterService proxy(CounterService target) {
+            return (CounterService) beanPostProcessor.postProcessAfterInitialization(target, "counterService");
+        }
+    },
+    /**
+     * CGLIB subclass of the target with the interceptor of {@link #PROXY_FACTORY}, the target's methods bound from
+     * its class, as a05concretproxy proxies a bean without interfaces
+     */
+    CGLIB {
+        @Override
+        public CounterService proxy(CounterService target) {
+            ProxyFactory pf = new ProxyFactory(target);
+            pf.setProxyTargetClass(true);
+            pf.addAdvice(new AuditingInterceptor(MethodInvokers.of(MethodHandles.lookup(), target, target.getClass())));
+            return (CounterService) pf.getProxy();
+        }
+    },
+    /**
+     * {@link AspectJProxyFactory} with an advisor matching the method by name, frozen CGLIB proxy from
+     * {@link DefaultAopProxyFactory}, as a04aop
+     */
+    ASPECTJ {
+        private final Advisor advisor = auditedAdvisor();
+
+        @Override
+        public CounterService proxy(CounterService target) {
+            AspectJProxyFactory pf = new AspectJProxyFactory(target);
+            pf.addAdvisor(advisor);
+            pf.setProxyTargetClass(true);
+            pf.setFrozen(true);
+            return (CounterService) DefaultAopProxyFactory.INSTANCE.createAopProxy(pf).getProxy();
+        }
+    },
+    /**
+     * {@link AuthorizationAdvisorProxyFactory#withDefaults()} plus an advisor for {@link Audited} methods, as
+     * a05annotation builds its factory without the expression handler
+     */
+    AUTHORIZATION {
+        private final AuthorizationAdvisorProxyFactory proxyFactory = authorizationProxyFactory();
+
+        @Override
+        public CounterService proxy(CounterService target) {
+            return (CounterService) proxyFactory.proxy(target);
+        }
+    };
+
+    public abstract CounterService proxy(CounterService target);
+
+    private static final AnnotatedMethods auditedMethods = AnnotatedMethods.of(Audited.class);
+
+    /**
+     * a04aop's advisor for {@code findById}, here for {@code advised}
+     */
+    private static Advisor auditedAdvisor() {
+        NameMatchMethodPointcutAdvisor advisor = new NameMatchMethodPointcutAdvisor(new CountingInterceptor());
+        advisor.setMappedName("advised");
+        return advisor;
+    }
+
+    private static AuthorizationAdvisorProxyFactory authorizationProxyFactory() {
+        AuthorizationAdvisorProxyFactory proxyFactory = AuthorizationAdvisorProxyFactory.withDefaults();
+        List<AuthorizationAdvisor> advisors = new ArrayList<>();
+        proxyFactory.forEach(advisors::add);
+        advisors.add(new AuditingAuthorizationAdvisor());
+        proxyFactory.setAdvisors(advisors);
+        return proxyFactory;
+    }
+
+    /**
+     * counts every call it is applied to
+     */
+    static class CountingInterceptor implements MethodInterceptor {
+        long count;
+
+        @Override
+        public Object invoke(MethodInvocation invocation) throws Throwable {
+            count++;
+            return invocation.proceed();
+        }
+    }
+
+    /**
+     * applied to every method, counts the {@link Audited} ones and calls the target through its invokers, as the
+     * advice of a02springfactory, a03bean and a05concretproxy
+     */
+    static class AuditingInterceptor implements MethodInterceptor {
+        private final MethodInvokers invokers;
+        long count;
+
+        AuditingInterceptor(MethodInvokers invokers) {
+            this.invokers = invokers;
+        }
+
+        @Override
+        public Object invoke(MethodInvocation invocation) throws Throwable {
+            Method method = invocation.getMethod();
+            if (method.getAnnotation(Audited.class) != null) {
+                count++;
+            }
+            return invokers.invoke(method, invocation.getArguments());
+        }
+    }
+
+    /**
+     * a01jdkproxy's handler, its descriptors bound when it is created
+     */
+    static class AuditingInvocationHandler implements InvocationHandler {
+        private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+        private final Object target;
+        private final Map<Method, MethodDescriptor> descriptors = new ConcurrentHashMap<>();
+        long count;
+
+        AuditingInvocationHandler(Object target) {
+            this.target = target;
+            for (Class<?> type : target.getClass().getInterfaces()) {
+                for (Method method : type.getMethods()) {
+                    if (!Modifier.isStatic(method.getModifiers())) {
+                        descriptors.put(method, MethodDescriptor.of(target, method));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            MethodDescriptor descriptor = descriptors.get(method);
+            if (descriptor == null) {
+                descriptor = descriptors.computeIfAbsent(method, m -> MethodDescriptor.of(target, m));
+            }
+            if (descriptor.audited()) {
+                count++;
+            }
+            return descriptor.invoker().invoke(args);
+        }
+
+        record MethodDescriptor(MethodInvoker invoker, boolean audited) {
+
+            static MethodDescriptor of(Object target, Method method) {
+                return new MethodDescriptor(MethodInvoker.of(LOOKUP, target, method),
+                        method.getAnnotation(Audited.class) != null);
+            }
+        }
+    }
+
+    static class AuditingBeanPostProcessor implements BeanPostProcessor {
+        @Override
+        public Object postProcessAfterInitialization(Object bean, String beanName) {
+            if (!auditedMethods.foundOn(bean)) {
+                return bean;
+            }
+            ProxyFactory pf = new ProxyFactory(bean);
+            pf.setInterfaces(bean.getClass().getInterfaces());
+            pf.addAdvice(new AuditingInterceptor(
+                    MethodInvokers.of(MethodHandles.lookup(), bean, bean.getClass().getInterfaces())));
+            return pf.getProxy();
+        }
+    }
+
+    static class AuditingAuthorizationAdvisor extends CountingInterceptor implements AuthorizationAdvisor {
+        private final Pointcut pointcut = new AnnotationMatchingPointcut(null, Audited.class, true);
+
+        @Override
+        public Pointcut getPointcut() {
+            return pointcut;
+        }
+
+        @Override
+        public Advice getAdvice() {
+            return this;
+        }
+
+        @Override
+        public int getOrder() {
+            return 0;
+        }
+    }
+}
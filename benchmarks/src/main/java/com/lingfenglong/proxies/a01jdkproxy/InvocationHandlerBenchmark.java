@@ -0,0 +1,113 @@
+package com.lingfenglong.proxies.a01jdkproxy;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the original lambda {@link InvocationHandler} with {@link TransactionalInvocationHandler},
+ * for both a {@link MyTransactional} method ({@code create}) and a plain one ({@code add}).
+ * Console output is discarded so only the handler work is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvocationHandlerBenchmark {
+    private PrintStream stdout;
+    private CustomerService lambdaProxy;
+    private CustomerService handlerProxy;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(InvocationHandlerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    @Setup
+    public void setup() {
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        CustomerService target = new NoopCustomerService();
+        lambdaProxy = proxy(target, lambdaHandler(target));
+        handlerProxy = proxy(target, new TransactionalInvocationHandler(target));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public void lambdaTransactional() {
+        lambdaProxy.create();
+    }
+
+    @Benchmark
+    public void lambdaNonTransactional() {
+        lambdaProxy.add();
+    }
+
+    @Benchmark
+    public void handlerTransactional() {
+        handlerProxy.create();
+    }
+
+    @Benchmark
+    public void handlerNonTransactional() {
+        handlerProxy.add();
+    }
+
+    private static CustomerService proxy(CustomerService target, InvocationHandler handler) {
+        return (CustomerService) Proxy.newProxyInstance(
+                target.getClass().getClassLoader(),
+                target.getClass().getInterfaces(),
+                handler);
+    }
+
+    /**
+     * the handler {@link Application} used before {@link TransactionalInvocationHandler}
+     */
+    private static InvocationHandler lambdaHandler(Object target) {
+        return (proxy, method, args) -> {
+            System.out.println("calling " + method.getName() + "with args " + Arrays.toString(args));
+
+            try {
+                if (method.getAnnotation(MyTransactional.class) != null) {
+                    System.out.println("starting transaction for " + method.getName());
+                }
+
+                return method.invoke(target, args);
+            } finally {
+                if (method.getAnnotation(MyTransactional.class) != null) {
+                    // rolling back or clean up
+                    System.out.println("finishing transaction for " + method.getName());
+                }
+            }
+        };
+    }
+
+    static class NoopCustomerService implements CustomerService {
+
+        @Override
+        public void create() {
+        }
+
+        @Override
+        public void add() {
+        }
+    }
+}
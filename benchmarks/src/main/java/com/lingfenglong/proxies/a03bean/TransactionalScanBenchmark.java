@@ -0,0 +1,128 @@
+package com.lingfenglong.proxies.a03bean;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.util.ReflectionUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * Refresh time of a context with {@code beans} synthetic beans, each checked by a {@link BeanPostProcessor}
+ * with either the original per-bean method walk ({@code legacy}) or {@link Application#transactional(Object)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TransactionalScanBenchmark {
+    private static final Class<?>[] BEAN_CLASSES = {
+            DefaultCustomerService.class, SyntheticRepository.class, SyntheticClient.class, SyntheticHandler.class
+    };
+
+    @Param({"1000", "5000"})
+    public int beans;
+
+    @Param({"legacy", "cached"})
+    public String scan;
+
+    private GenericApplicationContext context;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TransactionalScanBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    @Setup(Level.Invocation)
+    public void setup() {
+        Predicate<Object> transactional = scan.equals("legacy")
+                ? TransactionalScanBenchmark::legacyTransactional
+                : Application::transactional;
+
+        context = new GenericApplicationContext();
+        context.getBeanFactory().addBeanPostProcessor(new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                return transactional.test(bean) ? bean : null;
+            }
+        });
+        for (int i = 0; i < beans; i++) {
+            context.registerBeanDefinition("bean" + i, new RootBeanDefinition(BEAN_CLASSES[i % BEAN_CLASSES.length]));
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public GenericApplicationContext refresh() {
+        context.refresh();
+        return context;
+    }
+
+    /**
+     * how {@link Application#transactional(Object)} used to scan, on every bean and without stopping at the first hit
+     */
+    static boolean legacyTransactional(Object o) {
+        AtomicBoolean hasTransaction = new AtomicBoolean(false);
+        ArrayList<Class<?>> classes = new ArrayList<>();
+        classes.add(o.getClass());
+        Collections.addAll(classes, o.getClass().getInterfaces());
+
+        classes.forEach(clazz -> ReflectionUtils.doWithMethods(clazz, method -> {
+            if (method.getAnnotation(MyTransactional.class) != null) {
+                hasTransaction.set(true);
+            }
+        }));
+        return hasTransaction.get();
+    }
+
+    interface Repository {
+        Object findById(Long id);
+
+        void save(Object entity);
+    }
+
+    static class SyntheticRepository implements Repository {
+        @Override
+        public Object findById(Long id) {
+            return null;
+        }
+
+        @Override
+        public void save(Object entity) {
+        }
+
+        public void delete(Object entity) {
+        }
+    }
+
+    static class SyntheticClient {
+        public String get(String path) {
+            return path;
+        }
+
+        public String post(String path, String body) {
+            return body;
+        }
+    }
+
+    static class SyntheticHandler extends SyntheticClient implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+}
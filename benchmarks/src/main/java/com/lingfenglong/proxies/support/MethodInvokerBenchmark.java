@@ -0,0 +1,94 @@
+package com.lingfenglong.proxies.support;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Direct call vs. reflective {@link Method#invoke} vs. {@link MethodInvoker}, both called directly and behind a
+ * JDK proxy. Run with the GC profiler for the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MethodInvokerBenchmark {
+    private Calculator target;
+    private Method method;
+    private MethodInvoker invoker;
+    private Calculator reflectiveProxy;
+    private Calculator handleProxy;
+
+    private int a = 1;
+    private int b = 2;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MethodInvokerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    @Setup
+    public void setup() throws NoSuchMethodException {
+        target = new DefaultCalculator();
+        method = Calculator.class.getMethod("add", int.class, int.class);
+        invoker = MethodInvoker.of(MethodHandles.lookup(), target, method);
+
+        reflectiveProxy = (Calculator) Proxy.newProxyInstance(
+                Calculator.class.getClassLoader(),
+                new Class<?>[]{Calculator.class},
+                (proxy, m, args) -> m.invoke(target, args));
+
+        MethodInvokers invokers = MethodInvokers.of(MethodHandles.lookup(), target, Calculator.class);
+        handleProxy = (Calculator) Proxy.newProxyInstance(
+                Calculator.class.getClassLoader(),
+                new Class<?>[]{Calculator.class},
+                (proxy, m, args) -> invokers.invoke(m, args));
+    }
+
+    @Benchmark
+    public int direct() {
+        return target.add(a, b);
+    }
+
+    @Benchmark
+    public Object reflective() throws Exception {
+        return method.invoke(target, a, b);
+    }
+
+    @Benchmark
+    public Object handle() throws Throwable {
+        return invoker.invoke(new Object[]{a, b});
+    }
+
+    @Benchmark
+    public int reflectiveProxy() {
+        return reflectiveProxy.add(a, b);
+    }
+
+    @Benchmark
+    public int handleProxy() {
+        return handleProxy.add(a, b);
+    }
+
+    public interface Calculator {
+        int add(int a, int b);
+    }
+
+    static class DefaultCalculator implements Calculator {
+        @Override
+        public int add(int a, int b) {
+            return a + b;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.lingfenglong.security.a04aop;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.aop.framework.ProxyFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code getById}, which needs no authorization, called directly, through a proxy whose interceptor advises every
+ * method and compares the method name on each call, and through ones advised by {@link FindByIdAuthorization#advisor()}:
+ * a JDK proxy, still calling the target reflectively, and a frozen CGLIB proxy, dispatching methods without advice
+ * straight to the target.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdvisorBenchmark {
+    private BankAccountService target;
+    private BankAccountService nameCheck;
+    private BankAccountService pointcut;
+    private BankAccountService frozenPointcut;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(AdvisorBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    @Setup
+    public void setup() {
+        target = new DefaultBankAccountService();
+
+        FindByIdAuthorization authorization = new FindByIdAuthorization();
+        ProxyFactory nameCheckFactory = new ProxyFactory(target);
+        nameCheckFactory.addAdvice((MethodInterceptor) invocation ->
+                invocation.getMethod().getName().equals("findById")
+                        ? authorization.invoke(invocation)
+                        : invocation.proceed());
+        nameCheck = (BankAccountService) nameCheckFactory.getProxy();
+
+        ProxyFactory pointcutFactory = new ProxyFactory(target);
+        pointcutFactory.addAdvisor(FindByIdAuthorization.advisor());
+        pointcut = (BankAccountService) pointcutFactory.getProxy();
+
+        ProxyFactory frozenPointcutFactory = new ProxyFactory(target);
+        frozenPointcutFactory.addAdvisor(FindByIdAuthorization.advisor());
+        frozenPointcutFactory.setProxyTargetClass(true);
+        frozenPointcutFactory.setFrozen(true);
+        frozenPointcut = (BankAccountService) frozenPointcutFactory.getProxy();
+    }
+
+    @Benchmark
+    public BankAccount direct() {
+        return target.getById(1L);
+    }
+
+    @Benchmark
+    public BankAccount nameCheck() {
+        return nameCheck.getById(1L);
+    }
+
+    @Benchmark
+    public BankAccount pointcut() {
+        return pointcut.getById(1L);
+    }
+
+    @Benchmark
+    public BankAccount frozenPointcut() {
+        return frozenPointcut.getById(1L);
+    }
+}
@@ -0,0 +1,78 @@
+package com.lingfenglong.security.a05annotation;
+
+import com.lingfenglong.security.support.CompilingExpressionParser;
+import org.aopalliance.intercept.MethodInvocation;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.security.access.expression.method.DefaultMethodSecurityExpressionHandler;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.authorization.AuthorizationDecision;
+import org.springframework.security.authorization.method.MethodInvocationResult;
+import org.springframework.security.authorization.method.PostAuthorizeAuthorizationManager;
+import org.springframework.security.authorization.method.PreAuthorizeAuthorizationManager;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.util.SimpleMethodInvocation;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Per-call authorization overhead of the {@code @PostAuthorize} expression of {@link PreReadBankAccount} and the
+ * {@code @PreAuthorize} expression of {@link BankAccount#account()}, interpreted or compiled by
+ * {@link CompilingExpressionParser}. The caller is an admin reading someone else's account, so both sides of the
+ * {@code or} run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpressionCompilationBenchmark {
+
+    @Param({"interpreted", "compiled"})
+    public String expressions;
+
+    private PreAuthorizeAuthorizationManager preAuthorize;
+    private PostAuthorizeAuthorizationManager postAuthorize;
+    private Supplier<Authentication> authentication;
+    private MethodInvocation account;
+    private MethodInvocationResult findById;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ExpressionCompilationBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    @Setup
+    public void setup() throws NoSuchMethodException {
+        DefaultMethodSecurityExpressionHandler expressionHandler = AuthorizationReturnValueProxies.expressionHandler(
+                expressions.equals("compiled") ? new CompilingExpressionParser() : new SpelExpressionParser());
+        preAuthorize = new PreAuthorizeAuthorizationManager();
+        preAuthorize.setExpressionHandler(expressionHandler);
+        postAuthorize = new PostAuthorizeAuthorizationManager();
+        postAuthorize.setExpressionHandler(expressionHandler);
+
+        Authentication admin = new TestingAuthenticationToken("lfl", null, "ROLE_ADMIN");
+        authentication = () -> admin;
+        BankAccount bankAccount = new BankAccount(1L, "cc", "123456", BigDecimal.valueOf(100));
+        account = new SimpleMethodInvocation(bankAccount, BankAccount.class.getMethod("account"));
+        findById = new MethodInvocationResult(new SimpleMethodInvocation(new DefaultBankAccountService(),
+                DefaultBankAccountService.class.getMethod("findById", Long.class), 1L), bankAccount);
+    }
+
+    @Benchmark
+    public AuthorizationDecision postAuthorizeFindById() {
+        return postAuthorize.check(authentication, findById);
+    }
+
+    @Benchmark
+    public AuthorizationDecision preAuthorizeAccount() {
+        return preAuthorize.check(authentication, account);
+    }
+}
@@ -0,0 +1,78 @@
+package com.lingfenglong.security.a05annotation;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.authorization.method.AuthorizationAdvisorProxyFactory;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls per second of {@link BankAccountService#findById} when the return value is proxied by a factory built
+ * per call ({@code perCall}, as before) or by {@link AuthorizationReturnValueProxies} ({@code shared}).
+ * {@code findByIdAndRead} also calls the {@code @PreAuthorize} method of the returned proxy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FindByIdBenchmark {
+
+    @Param({"perCall", "shared"})
+    public String proxies;
+
+    private BankAccountService bankAccountService;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FindByIdBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    @Setup
+    public void setup() {
+        SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken("cc", null, "ROLE_USER"));
+        bankAccountService = (BankAccountService) AuthorizationReturnValueProxies.withDefaults().proxy(
+                proxies.equals("shared") ? new DefaultBankAccountService() : new PerCallBankAccountService());
+    }
+
+    @TearDown
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Benchmark
+    public Account findById() {
+        return bankAccountService.findById(1L);
+    }
+
+    @Benchmark
+    public String findByIdAndRead() {
+        return bankAccountService.findById(1L).account();
+    }
+
+    /**
+     * {@link DefaultBankAccountService} as it was, building the factory for every return value
+     */
+    public static class PerCallBankAccountService implements BankAccountService {
+        @PreReadBankAccount
+        @Override
+        public Account findById(Long id) {
+            AuthorizationAdvisorProxyFactory proxyFactory = AuthorizationAdvisorProxyFactory.withDefaults();
+            BankAccount bankAccount = new BankAccount(id, "cc", "123456", BigDecimal.valueOf(100));
+            return (Account) proxyFactory.proxy(bankAccount);
+        }
+
+        @PreReadBankAccount
+        @Override
+        public Account getById(Long id) {
+            return findById(id);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.lingfenglong.security.support;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.Authentication;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * What recording a granted access costs the calling thread once {@link AuditLog} is the {@link AccessLog}
+ * listener, with the writer keeping up ({@code BLOCK}) or not waited for ({@code DROP}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuditLogBenchmark {
+
+    @Param({"BLOCK", "DROP"})
+    public AuditLog.Overflow overflow;
+
+    private final Authentication authentication = new TestingAuthenticationToken("cc", null, "ROLE_ADMIN");
+    private Path file;
+    private AuditLog auditLog;
+    private Consumer<AccessLog.AccessEvent> previous;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(AuditLogBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile("audit", ".log");
+        auditLog = new AuditLog(file, 8192, overflow, AuditLog.Fsync.INTERVAL);
+        previous = AccessLog.setListener(auditLog);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        AccessLog.setListener(previous);
+        auditLog.close();
+        System.out.println(auditLog.stats());
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public void granted() {
+        AccessLog.granted(authentication, "BankAccountService.findById", 1L);
+    }
+}
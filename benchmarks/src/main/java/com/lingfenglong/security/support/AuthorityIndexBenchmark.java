@@ -0,0 +1,85 @@
+package com.lingfenglong.security.support;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code getAuthorities().contains(new SimpleGrantedAuthority("ROLE_ADMIN"))} vs. {@link AuthorityIndex} for a
+ * user with {@code authorities} authorities, {@code ROLE_ADMIN} being the last of them, checked for one user or
+ * for {@code USERS} users in turn as a pooled thread serving several does. Run with the GC profiler for the
+ * allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthorityIndexBenchmark {
+    private static final int ROLE_ADMIN = AuthorityIndex.role("ADMIN");
+    private static final int USERS = 4;
+
+    @Param({"1", "10", "100", "500"})
+    public int authorities;
+
+    private Authentication authentication;
+    private Authentication[] users;
+    private int next;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(AuthorityIndexBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    @Setup
+    public void setup() {
+        List<SimpleGrantedAuthority> grantedAuthorities = new ArrayList<>();
+        for (int i = 1; i < authorities; i++) {
+            grantedAuthorities.add(new SimpleGrantedAuthority("SCOPE_resource-" + i));
+        }
+        grantedAuthorities.add(new SimpleGrantedAuthority("ROLE_ADMIN"));
+        authentication = new TestingAuthenticationToken("cc", null, grantedAuthorities);
+        users = new Authentication[USERS];
+        for (int i = 0; i < USERS; i++) {
+            users[i] = new TestingAuthenticationToken("user-" + i, null, grantedAuthorities);
+        }
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return authentication.getAuthorities().contains(new SimpleGrantedAuthority("ROLE_ADMIN"));
+    }
+
+    @Benchmark
+    public boolean authorityIndex() {
+        return AuthorityIndex.hasAuthority(authentication, ROLE_ADMIN);
+    }
+
+    @Benchmark
+    public boolean containsAlternating() {
+        return nextUser().getAuthorities().contains(new SimpleGrantedAuthority("ROLE_ADMIN"));
+    }
+
+    @Benchmark
+    public boolean authorityIndexAlternating() {
+        return AuthorityIndex.hasAuthority(nextUser(), ROLE_ADMIN);
+    }
+
+    private Authentication nextUser() {
+        Authentication user = users[next];
+        next = (next + 1) % USERS;
+        return user;
+    }
+}
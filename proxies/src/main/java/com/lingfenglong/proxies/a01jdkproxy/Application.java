@@ -1,5 +1,6 @@
 package com.lingfenglong.proxies.a01jdkproxy;
 
+import com.lingfenglong.proxies.support.MethodInvoker;
 import org.springframework.aot.hint.annotation.Reflective;
 import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.SpringApplication;
@@ -7,8 +8,13 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 
 import java.lang.annotation.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Proxy;
-import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @SpringBootApplication
 public class Application {
@@ -25,28 +31,73 @@ public class Application {
             CustomerService proxyInstance = (CustomerService) Proxy.newProxyInstance(
                     target.getClass().getClassLoader(),
                     target.getClass().getInterfaces(),
-                    (proxy, method, args) -> {
-                        System.out.println("calling " + method.getName() + "with args " + Arrays.toString(args));
-
-                        try {
-                            if (method.getAnnotation(MyTransactional.class) != null) {
-                                System.out.println("starting transaction for " + method.getName());
-                            }
-
-                            return method.invoke(target, args);
-                        } finally {
-                            if (method.getAnnotation(MyTransactional.class) != null) {
-                                // rolling back or clean up
-                                System.out.println("finishing transaction for " + method.getName());
-                            }
-                        }
-                    });
+                    new TransactionalInvocationHandler(target));
 
             proxyInstance.create();
+
+            proxyInstance.add();
         };
     }
 }
 
+/**
+ * Looks up {@link MyTransactional} once per {@link Method} instead of on every call, and lets
+ * non-transactional methods go straight to the target without building any log messages.
+ * The target methods are called through {@link MethodInvoker}s bound when the handler is created.
+ */
+class TransactionalInvocationHandler implements InvocationHandler {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final Object target;
+    private final Map<Method, MethodDescriptor> descriptors = new ConcurrentHashMap<>();
+
+    TransactionalInvocationHandler(Object target) {
+        this.target = target;
+        for (Class<?> type : target.getClass().getInterfaces()) {
+            for (Method method : type.getMethods()) {
+                if (!Modifier.isStatic(method.getModifiers())) {
+                    descriptors.put(method, MethodDescriptor.of(target, method));
+                }
+            }
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        MethodDescriptor descriptor = descriptor(method);
+
+        if (!descriptor.transactional()) {
+            return descriptor.invoker().invoke(args);
+        }
+
+        System.out.println(descriptor.startMessage());
+        try {
+            return descriptor.invoker().invoke(args);
+        } finally {
+            // rolling back or clean up
+            System.out.println(descriptor.finishMessage());
+        }
+    }
+
+    private MethodDescriptor descriptor(Method method) {
+        MethodDescriptor descriptor = descriptors.get(method);
+        return descriptor != null ? descriptor : descriptors.computeIfAbsent(method, m -> MethodDescriptor.of(target, m));
+    }
+
+    record MethodDescriptor(MethodInvoker invoker, boolean transactional, String startMessage, String finishMessage) {
+
+        static MethodDescriptor of(Object target, Method method) {
+            MethodInvoker invoker = MethodInvoker.of(LOOKUP, target, method);
+            if (method.getAnnotation(MyTransactional.class) == null) {
+                return new MethodDescriptor(invoker, false, null, null);
+            }
+            return new MethodDescriptor(invoker, true,
+                    "starting transaction for " + method.getName(),
+                    "finishing transaction for " + method.getName());
+        }
+    }
+}
+
 @Target({ElementType.METHOD, ElementType.TYPE})
 @Retention(RetentionPolicy.RUNTIME)
 @Inherited
@@ -62,9 +113,16 @@ class DefaultCustomerService implements CustomerService {
     public void create() {
         System.out.println("add DefaultCustomerService create");
     }
+
+    @Override
+    public void add() {
+        System.out.println("DefaultCustomerService add");
+    }
 }
 
 interface CustomerService {
     @MyTransactional
     void create();  // just a function
+
+    void add();
 }
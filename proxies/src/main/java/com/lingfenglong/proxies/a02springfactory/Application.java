@@ -1,5 +1,6 @@
 package com.lingfenglong.proxies.a02springfactory;
 
+import com.lingfenglong.proxies.support.MethodInvokers;
 import org.aopalliance.intercept.MethodInterceptor;
 import org.springframework.aop.framework.ProxyFactory;
 import org.springframework.aot.hint.annotation.Reflective;
@@ -9,6 +10,7 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 
 import java.lang.annotation.*;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
 import java.util.Arrays;
 
@@ -28,6 +30,7 @@ public class Application {
             ProxyFactory pf = new ProxyFactory(target);
             pf.setTarget(target);
             pf.setInterfaces(target.getClass().getInterfaces());
+            MethodInvokers invokers = MethodInvokers.of(MethodHandles.lookup(), target, target.getClass().getInterfaces());
             pf.addAdvice((MethodInterceptor) methodInvocation -> {
                 Method method = methodInvocation.getMethod();
                 Object[] arguments = methodInvocation.getArguments();
@@ -39,7 +42,7 @@ public class Application {
                         System.out.println("starting transaction for " + method.getName());
                     }
 
-                    return method.invoke(target, arguments);
+                    return invokers.invoke(method, arguments);
                 } finally {
                     if (method.getAnnotation(MyTransactional.class) != null) {
                         // rolling back or clean up
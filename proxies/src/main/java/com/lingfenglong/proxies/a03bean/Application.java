@@ -1,5 +1,7 @@
 package com.lingfenglong.proxies.a03bean;
 
+import com.lingfenglong.proxies.support.AnnotatedMethods;
+import com.lingfenglong.proxies.support.MethodInvokers;
 import org.aopalliance.intercept.MethodInterceptor;
 import org.springframework.aop.framework.ProxyFactory;
 import org.springframework.aot.hint.annotation.Reflective;
@@ -9,14 +11,11 @@ import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
-import org.springframework.util.ReflectionUtils;
 
 import java.lang.annotation.*;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 @SpringBootApplication
 public class Application {
@@ -24,18 +23,13 @@ public class Application {
         SpringApplication.run(Application.class, args);
     }
 
+    /**
+     * whether a class has {@link MyTransactional} methods
+     */
+    private static final AnnotatedMethods transactionalMethods = AnnotatedMethods.of(MyTransactional.class);
+
     static boolean transactional(Object o) {
-        AtomicBoolean hasTransaction = new AtomicBoolean(false);
-        ArrayList<Class<?>> classes = new ArrayList<>();
-        classes.add(o.getClass());
-        Collections.addAll(classes, o.getClass().getInterfaces());
-
-        classes.forEach(clazz -> ReflectionUtils.doWithMethods(clazz, method -> {
-            if (method.getAnnotation(MyTransactional.class) != null) {
-                hasTransaction.set(true);
-            }
-        }));
-        return hasTransaction.get();
+        return transactionalMethods.foundOn(o);
     }
 
     @Bean
@@ -50,6 +44,7 @@ public class Application {
                 ProxyFactory pf = new ProxyFactory(target);
                 pf.setTarget(target);
                 pf.setInterfaces(target.getClass().getInterfaces());
+                MethodInvokers invokers = MethodInvokers.of(MethodHandles.lookup(), target, target.getClass().getInterfaces());
                 pf.addAdvice((MethodInterceptor) methodInvocation -> {
                     Method method = methodInvocation.getMethod();
                     Object[] arguments = methodInvocation.getArguments();
@@ -61,7 +56,7 @@ public class Application {
                             System.out.println("starting transaction for " + method.getName());
                         }
 
-                        return method.invoke(target, arguments);
+                        return invokers.invoke(method, arguments);
                     } finally {
                         if (method.getAnnotation(MyTransactional.class) != null) {
                             // rolling back or clean up
@@ -1,27 +1,39 @@
 package com.lingfenglong.proxies.a04aot;
 
+import com.lingfenglong.proxies.support.AnnotatedMethods;
+import com.lingfenglong.proxies.support.MethodInvokers;
 import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.AopProxyUtils;
 import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aot.generate.GeneratedClass;
 import org.springframework.aot.generate.GenerationContext;
 import org.springframework.aot.hint.annotation.Reflective;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.aot.BeanFactoryInitializationAotContribution;
 import org.springframework.beans.factory.aot.BeanFactoryInitializationAotProcessor;
 import org.springframework.beans.factory.aot.BeanFactoryInitializationCode;
+import org.springframework.beans.factory.aot.BeanRegistrationAotContribution;
+import org.springframework.beans.factory.aot.BeanRegistrationAotProcessor;
+import org.springframework.beans.factory.aot.BeanRegistrationCode;
+import org.springframework.beans.factory.aot.BeanRegistrationCodeFragmentsDecorator;
+import org.springframework.beans.factory.aot.BeanRegistrationExcludeFilter;
 import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.support.RegisteredBean;
 import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
-import org.springframework.util.ReflectionUtils;
+import org.springframework.javapoet.*;
 
+import javax.lang.model.element.Modifier;
 import java.lang.annotation.*;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.util.*;
 
 @SpringBootApplication
 public class Application {
@@ -29,18 +41,24 @@ public class Application {
         SpringApplication.run(Application.class, args);
     }
 
+    /**
+     * whether a class has {@link MyTransactional} methods
+     */
+    private static final AnnotatedMethods transactionalMethods = AnnotatedMethods.of(MyTransactional.class);
+
     static boolean transactional(Object o) {
-        AtomicBoolean hasTransaction = new AtomicBoolean(false);
-        ArrayList<Class<?>> classes = new ArrayList<>();
-        classes.add(o.getClass());
-        Collections.addAll(classes, o.getClass().getInterfaces());
-
-        classes.forEach(clazz -> ReflectionUtils.doWithMethods(clazz, method -> {
-            if (method.getAnnotation(MyTransactional.class) != null) {
-                hasTransaction.set(true);
-            }
-        }));
-        return hasTransaction.get();
+        return transactionalMethods.foundOn(o);
+    }
+
+    static boolean transactional(Class<?> clazz) {
+        return transactionalMethods.foundOn(clazz);
+    }
+
+    /**
+     * whether {@link TransactionalDelegateAotProcessor} replaces the runtime proxy of a bean of this type
+     */
+    static boolean generatesDelegate(Class<?> beanType) {
+        return beanType.isInterface() && beanType.getTypeParameters().length == 0 && transactional(beanType);
     }
 
     @Bean
@@ -51,19 +69,159 @@ public class Application {
     static class ProxyBeanFactoryInitializationAotProcessor implements BeanFactoryInitializationAotProcessor {
 
         /**
-         * tell Graavl VM what interfaces the proxy has
+         * tell Graavl VM what the proxy of every {@link MyTransactional} bean looks like: a JDK proxy of the bean's
+         * interfaces, or a CGLIB subclass generated right now when the bean has no interfaces
          */
         @Override
         public BeanFactoryInitializationAotContribution processAheadOfTime(ConfigurableListableBeanFactory beanFactory) {
-            return (generationContext, beanFactoryInitializationCode) -> generationContext
-                    .getRuntimeHints()
-                    .proxies()
-                    .registerJdkProxy(
-                            CustomerService.class,
-                            org.springframework.aop.SpringProxy.class,
-                            org.springframework.aop.framework.Advised.class,
-                            org.springframework.core.DecoratingProxy.class
-                    );
+            Set<List<Class<?>>> jdkProxies = new LinkedHashSet<>();
+            Set<Class<?>> classProxies = new LinkedHashSet<>();
+
+            for (String beanName : beanFactory.getBeanDefinitionNames()) {
+                Class<?> beanType = beanFactory.getType(beanName, false);
+                if (beanType == null || generatesDelegate(beanType) || !transactional(beanType)) {
+                    continue;
+                }
+                Class<?>[] interfaces = beanType.isInterface() ? new Class<?>[]{beanType} : beanType.getInterfaces();
+                if (interfaces.length > 0) {
+                    jdkProxies.add(List.of(AopProxyUtils.completeJdkProxyInterfaces(interfaces)));
+                } else {
+                    classProxies.add(beanType);
+                }
+            }
+
+            if (jdkProxies.isEmpty() && classProxies.isEmpty()) {
+                return null;
+            }
+            return (generationContext, beanFactoryInitializationCode) -> {
+                jdkProxies.forEach(interfaces -> generationContext.getRuntimeHints()
+                        .proxies()
+                        .registerJdkProxy(interfaces.toArray(Class<?>[]::new)));
+
+                // generated while AOT processing, the CGLIB class is written out with its hints and loaded at runtime
+                classProxies.forEach(beanType -> {
+                    ProxyFactory pf = new ProxyFactory();
+                    pf.setTargetClass(beanType);
+                    pf.addAdvice((MethodInterceptor) MethodInvocation::proceed);
+                    pf.getProxyClass(beanType.getClassLoader());
+                });
+            };
+        }
+    }
+
+    @Bean
+    static TransactionalDelegateAotProcessor transactionalDelegateAotProcessor() {
+        return new TransactionalDelegateAotProcessor();
+    }
+
+    /**
+     * generate a delegating class for every interface-typed {@link MyTransactional} bean at build time and let its
+     * instance supplier wrap the target, so neither a runtime proxy nor annotation scanning is needed; the instance
+     * supplier of any other {@link MyTransactional} bean creates its proxy directly. The generated artifacts then
+     * leave {@link MyTransactionBeanPostProcessor} out, no bean is scanned at runtime.
+     */
+    static class TransactionalDelegateAotProcessor implements BeanRegistrationAotProcessor,
+            BeanRegistrationExcludeFilter {
+
+        @Override
+        public boolean isExcludedFromAotProcessing(RegisteredBean registeredBean) {
+            return MyTransactionBeanPostProcessor.class.isAssignableFrom(registeredBean.getBeanClass());
+        }
+
+        @Override
+        public BeanRegistrationAotContribution processAheadOfTime(RegisteredBean registeredBean) {
+            Class<?> beanType = registeredBean.getBeanType().toClass();
+            if (!transactional(beanType)) {
+                return null;
+            }
+            if (!generatesDelegate(beanType)) {
+                return BeanRegistrationAotContribution.withCustomCodeFragments(codeFragments ->
+                        new BeanRegistrationCodeFragmentsDecorator(codeFragments) {
+                            @Override
+                            public CodeBlock generateInstanceSupplierCode(GenerationContext generationContext,
+                                                                          BeanRegistrationCode beanRegistrationCode,
+                                                                          boolean allowDirectSupplierShortcut) {
+                                CodeBlock instanceSupplier = super.generateInstanceSupplierCode(
+                                        generationContext, beanRegistrationCode, false);
+                                return CodeBlock.of("$L.andThen((registeredBean, instance) -> $T.proxy(instance))",
+                                        instanceSupplier, Application.class);
+                            }
+                        });
+            }
+
+            return BeanRegistrationAotContribution.withCustomCodeFragments(codeFragments ->
+                    new BeanRegistrationCodeFragmentsDecorator(codeFragments) {
+                        @Override
+                        public CodeBlock generateInstanceSupplierCode(GenerationContext generationContext,
+                                                                      BeanRegistrationCode beanRegistrationCode,
+                                                                      boolean allowDirectSupplierShortcut) {
+                            GeneratedClass delegateClass = generationContext.getGeneratedClasses()
+                                    .getOrAddForFeatureComponent("TransactionalDelegate", beanType,
+                                            type -> generateDelegate(type, beanType));
+                            CodeBlock instanceSupplier = super.generateInstanceSupplierCode(
+                                    generationContext, beanRegistrationCode, false);
+                            return CodeBlock.of("$L.andThen((registeredBean, instance) -> new $T(instance))",
+                                    instanceSupplier, delegateClass.getName());
+                        }
+                    });
+        }
+
+        private static void generateDelegate(TypeSpec.Builder type, Class<?> beanType) {
+            type.addJavadoc("Delegating {@link $T} generated ahead of time for its {@link $T} methods.",
+                    beanType, MyTransactional.class);
+            type.addModifiers(Modifier.PUBLIC);
+            type.addSuperinterface(beanType);
+            type.addSuperinterface(TransactionalDelegate.class);
+            type.addField(beanType, "delegate", Modifier.PRIVATE, Modifier.FINAL);
+            type.addMethod(MethodSpec.constructorBuilder()
+                    .addModifiers(Modifier.PUBLIC)
+                    .addParameter(beanType, "delegate")
+                    .addStatement("this.delegate = delegate")
+                    .build());
+
+            Set<String> signatures = new HashSet<>();
+            for (Method method : beanType.getMethods()) {
+                if (java.lang.reflect.Modifier.isStatic(method.getModifiers())
+                        || !signatures.add(method.getName() + Arrays.toString(method.getParameterTypes()))) {
+                    continue;
+                }
+                type.addMethod(generateDelegateMethod(method));
+            }
+        }
+
+        private static MethodSpec generateDelegateMethod(Method method) {
+            MethodSpec.Builder builder = MethodSpec.methodBuilder(method.getName())
+                    .addAnnotation(Override.class)
+                    .addModifiers(Modifier.PUBLIC)
+                    .returns(TypeName.get(method.getGenericReturnType()))
+                    .varargs(method.isVarArgs());
+            for (TypeVariable<Method> typeVariable : method.getTypeParameters()) {
+                builder.addTypeVariable(TypeVariableName.get(typeVariable));
+            }
+            Type[] parameterTypes = method.getGenericParameterTypes();
+            CodeBlock.Builder arguments = CodeBlock.builder();
+            for (int i = 0; i < parameterTypes.length; i++) {
+                builder.addParameter(TypeName.get(parameterTypes[i]), "arg" + i);
+                arguments.add(i == 0 ? "$L" : ", $L", "arg" + i);
+            }
+            for (Type exceptionType : method.getGenericExceptionTypes()) {
+                builder.addException(TypeName.get(exceptionType));
+            }
+
+            CodeBlock call = CodeBlock.of("this.delegate.$L($L)", method.getName(), arguments.build());
+            String statement = method.getReturnType() == void.class ? "$L" : "return $L";
+            if (method.getAnnotation(MyTransactional.class) == null) {
+                return builder.addStatement(statement, call).build();
+            }
+            return builder
+                    .addStatement("$T.out.println($S)", System.class, "starting transaction for " + method.getName())
+                    .beginControlFlow("try")
+                    .addStatement(statement, call)
+                    .nextControlFlow("finally")
+                    .addComment("rolling back or clean up")
+                    .addStatement("$T.out.println($S)", System.class, "finishing transaction for " + method.getName())
+                    .endControlFlow()
+                    .build();
         }
     }
 
@@ -75,38 +233,50 @@ public class Application {
     static class MyTransactionBeanPostProcessor implements BeanPostProcessor {
         @Override
         public Object postProcessAfterInitialization(Object target, String beanName) throws BeansException {
+            if (target instanceof TransactionalDelegate) {
+                // already wrapped by code generated ahead of time
+                return target;
+            }
             if (transactional(target)) {
-                ProxyFactory pf = new ProxyFactory(target);
-                pf.setTarget(target);
-                pf.setInterfaces(target.getClass().getInterfaces());
-                pf.addAdvice((MethodInterceptor) methodInvocation -> {
-                    Method method = methodInvocation.getMethod();
-                    Object[] arguments = methodInvocation.getArguments();
-
-                    System.out.println("calling " + method.getName() + "with args " + Arrays.toString(arguments));
-
-                    try {
-                        if (method.getAnnotation(MyTransactional.class) != null) {
-                            System.out.println("starting transaction for " + method.getName());
-                        }
-
-                        return method.invoke(target, arguments);
-                    } finally {
-                        if (method.getAnnotation(MyTransactional.class) != null) {
-                            // rolling back or clean up
-                            System.out.println("finishing transaction for " + method.getName());
-                        }
-                    }
-                });
-
-                Object proxy = pf.getProxy();
-                Arrays.stream(proxy.getClass().getInterfaces()).forEach(System.out::println);
-                return proxy;
+                return proxy(target);
             }
             return BeanPostProcessor.super.postProcessAfterInitialization(target, beanName);
         }
     }
 
+    /**
+     * the proxy of a {@link MyTransactional} bean, called by generated instance suppliers as well
+     */
+    public static Object proxy(Object target) {
+        ProxyFactory pf = new ProxyFactory(target);
+        pf.setTarget(target);
+        pf.setInterfaces(target.getClass().getInterfaces());
+        MethodInvokers invokers = MethodInvokers.of(MethodHandles.lookup(), target, target.getClass().getInterfaces());
+        pf.addAdvice((MethodInterceptor) methodInvocation -> {
+            Method method = methodInvocation.getMethod();
+            Object[] arguments = methodInvocation.getArguments();
+
+            System.out.println("calling " + method.getName() + "with args " + Arrays.toString(arguments));
+
+            try {
+                if (method.getAnnotation(MyTransactional.class) != null) {
+                    System.out.println("starting transaction for " + method.getName());
+                }
+
+                return invokers.invoke(method, arguments);
+            } finally {
+                if (method.getAnnotation(MyTransactional.class) != null) {
+                    // rolling back or clean up
+                    System.out.println("finishing transaction for " + method.getName());
+                }
+            }
+        });
+
+        Object proxy = pf.getProxy();
+        Arrays.stream(proxy.getClass().getInterfaces()).forEach(System.out::println);
+        return proxy;
+    }
+
     @Bean
     CustomerService customerService() {
         return new DefaultCustomerService();
@@ -131,6 +301,13 @@ public class Application {
 
 }
 
+/**
+ * implemented by the delegates {@link Application.TransactionalDelegateAotProcessor} generates
+ */
+interface TransactionalDelegate {
+
+}
+
 class DefaultCustomerService implements CustomerService {
 
     @Override
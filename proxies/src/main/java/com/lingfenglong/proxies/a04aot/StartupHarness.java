@@ -0,0 +1,47 @@
+package com.lingfenglong.proxies.a04aot;
+
+import org.springframework.aot.AotDetector;
+import org.springframework.boot.Banner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.boot.context.event.ApplicationStartingEvent;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup time and first-call latency of {@link Application}, with the runtime proxy or with the delegates
+ * generated ahead of time:
+ * <pre>
+ * java -cp ... com.lingfenglong.proxies.a04aot.StartupHarness
+ * mvn -Paot package
+ * java -Dspring.aot.enabled=true -cp ... com.lingfenglong.proxies.a04aot.StartupHarness
+ * </pre>
+ * The first calls are the ones the {@code ApplicationRunner} makes, between the started and the ready event.
+ */
+public class StartupHarness {
+    public static void main(String[] args) {
+        long[] timestamps = new long[3];
+
+        SpringApplication application = new SpringApplication(Application.class);
+        application.setMainApplicationClass(Application.class);
+        application.setBannerMode(Banner.Mode.OFF);
+        application.setLogStartupInfo(false);
+        application.addListeners(event -> {
+            if (event instanceof ApplicationStartingEvent) {
+                timestamps[0] = System.nanoTime();
+            } else if (event instanceof ApplicationStartedEvent) {
+                timestamps[1] = System.nanoTime();
+            } else if (event instanceof ApplicationReadyEvent) {
+                timestamps[2] = System.nanoTime();
+            }
+        });
+        application.run(args).close();
+
+        System.out.printf("mode:             %s%n", AotDetector.useGeneratedArtifacts() ? "aot" : "jit");
+        System.out.printf("jvm uptime:       %d ms%n", ManagementFactory.getRuntimeMXBean().getUptime());
+        System.out.printf("context startup:  %d ms%n", TimeUnit.NANOSECONDS.toMillis(timestamps[1] - timestamps[0]));
+        System.out.printf("first calls:      %d us%n", TimeUnit.NANOSECONDS.toMicros(timestamps[2] - timestamps[1]));
+    }
+}
@@ -1,6 +1,10 @@
 package com.lingfenglong.proxies.a05concretproxy;
 
+import com.lingfenglong.proxies.support.AnnotatedMethods;
+import com.lingfenglong.proxies.support.MethodInvokers;
 import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.AopProxyUtils;
 import org.springframework.aop.framework.ProxyFactory;
 import org.springframework.aot.hint.annotation.Reflective;
 import org.springframework.beans.BeansException;
@@ -12,14 +16,11 @@ import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
-import org.springframework.util.ReflectionUtils;
 
 import java.lang.annotation.*;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.*;
 
 @SpringBootApplication
 public class Application {
@@ -27,18 +28,17 @@ public class Application {
         SpringApplication.run(Application.class, args);
     }
 
+    /**
+     * whether a class has {@link MyTransactional} methods
+     */
+    private static final AnnotatedMethods transactionalMethods = AnnotatedMethods.of(MyTransactional.class);
+
     static boolean transactional(Object o) {
-        AtomicBoolean hasTransaction = new AtomicBoolean(false);
-        ArrayList<Class<?>> classes = new ArrayList<>();
-        classes.add(o.getClass());
-        Collections.addAll(classes, o.getClass().getInterfaces());
-
-        classes.forEach(clazz -> ReflectionUtils.doWithMethods(clazz, method -> {
-            if (method.getAnnotation(MyTransactional.class) != null) {
-                hasTransaction.set(true);
-            }
-        }));
-        return hasTransaction.get();
+        return transactionalMethods.foundOn(o);
+    }
+
+    static boolean transactional(Class<?> clazz) {
+        return transactionalMethods.foundOn(clazz);
     }
 
     @Bean
@@ -49,18 +49,43 @@ public class Application {
     static class ProxyBeanFactoryInitializationAotProcessor implements BeanFactoryInitializationAotProcessor {
 
         /**
-         * tell Graavl VM what interfaces the proxy has
+         * tell Graavl VM what the proxy of every {@link MyTransactional} bean looks like: a JDK proxy of the bean's
+         * interfaces, or a CGLIB subclass generated right now when the bean has no interfaces
          */
         @Override
         public BeanFactoryInitializationAotContribution processAheadOfTime(ConfigurableListableBeanFactory beanFactory) {
-            return (generationContext, beanFactoryInitializationCode) -> generationContext
-                    .getRuntimeHints()
-                    .proxies()
-                    .registerJdkProxy(
-                            org.springframework.aop.SpringProxy.class,
-                            org.springframework.aop.framework.Advised.class,
-                            org.springframework.core.DecoratingProxy.class
-                    );
+            Set<List<Class<?>>> jdkProxies = new LinkedHashSet<>();
+            Set<Class<?>> classProxies = new LinkedHashSet<>();
+
+            for (String beanName : beanFactory.getBeanDefinitionNames()) {
+                Class<?> beanType = beanFactory.getType(beanName, false);
+                if (beanType == null || !transactional(beanType)) {
+                    continue;
+                }
+                Class<?>[] interfaces = beanType.isInterface() ? new Class<?>[]{beanType} : beanType.getInterfaces();
+                if (interfaces.length > 0) {
+                    jdkProxies.add(List.of(AopProxyUtils.completeJdkProxyInterfaces(interfaces)));
+                } else {
+                    classProxies.add(beanType);
+                }
+            }
+
+            if (jdkProxies.isEmpty() && classProxies.isEmpty()) {
+                return null;
+            }
+            return (generationContext, beanFactoryInitializationCode) -> {
+                jdkProxies.forEach(interfaces -> generationContext.getRuntimeHints()
+                        .proxies()
+                        .registerJdkProxy(interfaces.toArray(Class<?>[]::new)));
+
+                // generated while AOT processing, the CGLIB class is written out with its hints and loaded at runtime
+                classProxies.forEach(beanType -> {
+                    ProxyFactory pf = new ProxyFactory();
+                    pf.setTargetClass(beanType);
+                    pf.addAdvice((MethodInterceptor) MethodInvocation::proceed);
+                    pf.getProxyClass(beanType.getClassLoader());
+                });
+            };
         }
     }
 
@@ -76,6 +101,7 @@ public class Application {
                 ProxyFactory pf = new ProxyFactory();
                 pf.setTarget(target);
                 pf.setInterfaces(target.getClass().getInterfaces());
+                MethodInvokers invokers = MethodInvokers.of(MethodHandles.lookup(), target, target.getClass());
                 pf.addAdvice((MethodInterceptor) methodInvocation -> {
                     Method method = methodInvocation.getMethod();
                     Object[] arguments = methodInvocation.getArguments();
@@ -87,7 +113,7 @@ public class Application {
                             System.out.println("starting transaction for " + method.getName());
                         }
 
-                        return method.invoke(target, arguments);
+                        return invokers.invoke(method, arguments);
                     } finally {
                         if (method.getAnnotation(MyTransactional.class) != null) {
                             // rolling back or clean up
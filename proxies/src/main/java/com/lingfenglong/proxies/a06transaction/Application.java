@@ -0,0 +1,584 @@
+package com.lingfenglong.proxies.a06transaction;
+
+import com.lingfenglong.proxies.support.AnnotatedMethods;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aot.hint.annotation.Reflective;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.jdbc.core.simple.JdbcClient;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.TransactionTimedOutException;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.lang.annotation.*;
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootApplication
+public class Application {
+    public static void main(String[] args) {
+        SpringApplication.run(Application.class, args);
+    }
+
+    /**
+     * whether a class has {@link MyTransactional} methods
+     */
+    private static final AnnotatedMethods transactionalMethods = AnnotatedMethods.of(MyTransactional.class);
+
+    static boolean transactional(Object o) {
+        return transactionalMethods.foundOn(o);
+    }
+
+    @Bean
+    DataSource dataSource() {
+        EmbeddedDatabase dataSource = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .generateUniqueName(true)
+                .build();
+        JdbcClient jdbcClient = JdbcClient.create(dataSource);
+        jdbcClient.sql("create table customers (id bigint auto_increment primary key, name varchar(255) not null)").update();
+        jdbcClient.sql("create table audit_log (id bigint auto_increment primary key, message varchar(255) not null)").update();
+        return dataSource;
+    }
+
+    @Bean
+    DataSourceTransactionManager transactionManager(DataSource dataSource) {
+        return new DataSourceTransactionManager(dataSource);
+    }
+
+    @Bean
+    GroupCommitter groupCommitter(PlatformTransactionManager transactionManager) {
+        return new GroupCommitter(transactionManager, 64, Duration.ofMillis(2), Duration.ofSeconds(30));
+    }
+
+    @Bean
+    MyTransactionInterceptor myTransactionInterceptor(PlatformTransactionManager transactionManager,
+                                                      GroupCommitter groupCommitter) {
+        return new MyTransactionInterceptor(transactionManager, groupCommitter);
+    }
+
+    @Bean
+    static MyTransactionBeanPostProcessor myTransactionBeanPostProcessor(
+            ObjectProvider<MyTransactionInterceptor> interceptor) {
+        return new MyTransactionBeanPostProcessor(interceptor);
+    }
+
+    static class MyTransactionBeanPostProcessor implements BeanPostProcessor {
+        private final ObjectProvider<MyTransactionInterceptor> interceptor;
+
+        MyTransactionBeanPostProcessor(ObjectProvider<MyTransactionInterceptor> interceptor) {
+            this.interceptor = interceptor;
+        }
+
+        @Override
+        public Object postProcessAfterInitialization(Object target, String beanName) throws BeansException {
+            if (transactional(target)) {
+                ProxyFactory pf = new ProxyFactory();
+                pf.setTarget(target);
+                pf.setInterfaces(target.getClass().getInterfaces());
+                pf.addAdvice(interceptor.getObject());
+                return pf.getProxy();
+            }
+            return BeanPostProcessor.super.postProcessAfterInitialization(target, beanName);
+        }
+    }
+
+    @Bean
+    AuditService auditService(JdbcClient jdbcClient) {
+        return new DefaultAuditService(jdbcClient);
+    }
+
+    @Bean
+    CustomerService customerService(JdbcClient jdbcClient, AuditService auditService) {
+        return new DefaultCustomerService(jdbcClient, auditService);
+    }
+
+    @Bean
+    JdbcClient jdbcClient(DataSource dataSource) {
+        return JdbcClient.create(dataSource);
+    }
+
+    @Bean
+    ApplicationRunner applicationRunner(CustomerService customerService) {
+        return appArgs -> {
+            customerService.create("cc");
+
+            customerService.createAll(List.of("lfl", "lingfenglong"));
+
+            System.out.println(customerService.count() + " customers");
+        };
+    }
+}
+
+@SpringBootTest
+class CustomerServiceTest {
+    @Autowired
+    CustomerService customerService;
+
+    @Autowired
+    GroupCommitter groupCommitter;
+
+    @Autowired
+    JdbcClient jdbcClient;
+
+    @Test
+    void create() {
+        long count = customerService.count();
+
+        customerService.create("cc");
+
+        assertEquals(count + 1, customerService.count());
+    }
+
+    @Test
+    void createAllRollsBack() {
+        long count = customerService.count();
+
+        assertThrows(
+                Exception.class,
+                () -> customerService.createAll(Arrays.asList("lfl", null))
+        );
+        assertEquals(count, customerService.count());
+    }
+
+    @Test
+    void requiresNewSurvivesRollback() {
+        long audits = jdbcClient.sql("select count(*) from audit_log").query(Long.class).single();
+
+        assertThrows(
+                Exception.class,
+                () -> customerService.createAll(Arrays.asList("lfl", null))
+        );
+        assertEquals(audits + 1, jdbcClient.sql("select count(*) from audit_log").query(Long.class).single());
+    }
+
+    @Test
+    void groupCommit() throws Exception {
+        int calls = 1000;
+        long count = customerService.count();
+        long commits = groupCommitter.commits();
+        long failures = groupCommitter.failures();
+
+        ExecutorService executor = Executors.newFixedThreadPool(32);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < calls; i++) {
+                // every 10th call violates the not null constraint
+                String name = i % 10 == 0 ? null : "customer-" + i;
+                futures.add(executor.submit(() -> customerService.create(name)));
+            }
+            int failed = 0;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    failed++;
+                }
+            }
+
+            assertEquals(calls / 10, failed);
+            assertEquals(count + calls - failed, customerService.count());
+            assertEquals(failed, groupCommitter.failures() - failures);
+            assertTrue(groupCommitter.commits() - commits < calls, "calls should share commits");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void failedRollbackKeepsTheError() {
+        IllegalStateException rollbackFailure = new IllegalStateException("connection lost");
+        PlatformTransactionManager transactionManager = new PlatformTransactionManager() {
+            @Override
+            public TransactionStatus getTransaction(TransactionDefinition definition) {
+                return new SimpleTransactionStatus();
+            }
+
+            @Override
+            public void commit(TransactionStatus status) {
+            }
+
+            @Override
+            public void rollback(TransactionStatus status) {
+                throw rollbackFailure;
+            }
+        };
+        ProxyFactory pf = new ProxyFactory((AuditService) message -> {
+            throw new IllegalArgumentException(message);
+        });
+        pf.addAdvice(new MyTransactionInterceptor(transactionManager, groupCommitter));
+        AuditService auditService = (AuditService) pf.getProxy();
+
+        IllegalArgumentException ex = assertThrows(IllegalArgumentException.class, () -> auditService.record("cc"));
+        assertArrayEquals(new Throwable[]{rollbackFailure}, ex.getSuppressed());
+    }
+
+    @Test
+    void stoppedGroupCommitterFailsFast() {
+        GroupCommitter stopped = new GroupCommitter(new DataSourceTransactionManager(), 64, Duration.ofMillis(2),
+                Duration.ofSeconds(30));
+        stopped.destroy();
+
+        assertTimeoutPreemptively(Duration.ofSeconds(5),
+                () -> assertThrows(IllegalStateException.class, () -> stopped.execute(() -> "cc")));
+    }
+
+    @Test
+    void groupCommitWaitsAtMostTheCallTimeout() {
+        PlatformTransactionManager slowTransactionManager = new PlatformTransactionManager() {
+            @Override
+            public TransactionStatus getTransaction(TransactionDefinition definition) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return new SimpleTransactionStatus();
+            }
+
+            @Override
+            public void commit(TransactionStatus status) {
+            }
+
+            @Override
+            public void rollback(TransactionStatus status) {
+            }
+        };
+        GroupCommitter slow = new GroupCommitter(slowTransactionManager, 64, Duration.ofMillis(2),
+                Duration.ofMillis(100));
+        try {
+            assertTimeoutPreemptively(Duration.ofSeconds(5),
+                    () -> assertThrows(TransactionTimedOutException.class, () -> slow.execute(() -> "cc")));
+        } finally {
+            slow.destroy();
+        }
+    }
+}
+
+enum Propagation {
+    /**
+     * join the current transaction, or start one
+     */
+    REQUIRED(TransactionDefinition.PROPAGATION_REQUIRED),
+    /**
+     * always start a transaction of its own, suspending the current one
+     */
+    REQUIRES_NEW(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+    private final int behavior;
+
+    Propagation(int behavior) {
+        this.behavior = behavior;
+    }
+
+    int behavior() {
+        return behavior;
+    }
+}
+
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+@Inherited
+@Documented
+@Reflective
+@interface MyTransactional {
+
+    Propagation propagation() default Propagation.REQUIRED;
+
+    /**
+     * when there is no transaction yet, let {@link GroupCommitter} commit this call together with others
+     */
+    boolean groupCommit() default false;
+}
+
+/**
+ * Runs {@link MyTransactional} methods in a transaction of the {@link PlatformTransactionManager}, which binds the
+ * connection to the thread so that {@link JdbcClient} calls of the target take part in it.
+ */
+class MyTransactionInterceptor implements MethodInterceptor {
+    private static final TransactionAttribute NOT_TRANSACTIONAL = new TransactionAttribute(null, false);
+
+    private final PlatformTransactionManager transactionManager;
+    private final GroupCommitter groupCommitter;
+    private final Map<Method, TransactionAttribute> attributes = new ConcurrentHashMap<>();
+
+    MyTransactionInterceptor(PlatformTransactionManager transactionManager, GroupCommitter groupCommitter) {
+        this.transactionManager = transactionManager;
+        this.groupCommitter = groupCommitter;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        TransactionAttribute attribute = attributes.computeIfAbsent(invocation.getMethod(), TransactionAttribute::of);
+        if (attribute == NOT_TRANSACTIONAL) {
+            return invocation.proceed();
+        }
+
+        if (attribute.groupCommit() && !TransactionSynchronizationManager.isActualTransactionActive()) {
+            return groupCommitter.execute(invocation::proceed);
+        }
+
+        TransactionStatus status = transactionManager.getTransaction(attribute.definition());
+        Object result;
+        try {
+            result = invocation.proceed();
+        } catch (Throwable ex) {
+            rollback(transactionManager, status, ex);
+            throw ex;
+        }
+        transactionManager.commit(status);
+        return result;
+    }
+
+    /**
+     * rolls back after {@code ex}, keeping a failing rollback as suppressed so {@code ex} is still the one thrown
+     */
+    static void rollback(PlatformTransactionManager transactionManager, TransactionStatus status, Throwable ex) {
+        try {
+            transactionManager.rollback(status);
+        } catch (RuntimeException | Error rollbackEx) {
+            ex.addSuppressed(rollbackEx);
+        }
+    }
+
+    record TransactionAttribute(TransactionDefinition definition, boolean groupCommit) {
+
+        static TransactionAttribute of(Method method) {
+            MyTransactional transactional = AnnotatedElementUtils.findMergedAnnotation(method, MyTransactional.class);
+            if (transactional == null) {
+                transactional = AnnotatedElementUtils.findMergedAnnotation(method.getDeclaringClass(), MyTransactional.class);
+            }
+            if (transactional == null) {
+                return NOT_TRANSACTIONAL;
+            }
+
+            DefaultTransactionDefinition definition = new DefaultTransactionDefinition(transactional.propagation().behavior());
+            definition.setName(method.getDeclaringClass().getName() + "." + method.getName());
+            return new TransactionAttribute(definition, transactional.groupCommit());
+        }
+    }
+}
+
+/**
+ * Commits many small transactional calls together: calls are queued, and a single committer thread runs up to
+ * {@code maxBatchSize} of them, collected for at most {@code maxLatency}, in one transaction with one commit.
+ * Every call gets a savepoint, so a failing call is rolled back alone and the others still commit. Callers block
+ * until the commit of their batch, so a returned call is as durable as one that committed on its own. A caller
+ * gives up after {@code callTimeout}; its call may still commit later if it had already started.
+ * <p>
+ * The calls run on the committer thread, thread-bound state of the caller is not visible to them.
+ */
+class GroupCommitter implements DisposableBean {
+    private final PlatformTransactionManager transactionManager;
+    private final int maxBatchSize;
+    private final long maxLatencyNanos;
+    private final long callTimeoutNanos;
+    private final BlockingQueue<PendingCall> queue = new LinkedBlockingQueue<>();
+    private final Thread committer;
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile boolean stopped;
+
+    GroupCommitter(PlatformTransactionManager transactionManager, int maxBatchSize, Duration maxLatency,
+                   Duration callTimeout) {
+        this.transactionManager = transactionManager;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLatencyNanos = maxLatency.toNanos();
+        this.callTimeoutNanos = callTimeout.toNanos();
+        this.committer = new Thread(this::run, "group-committer");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    Object execute(Work work) throws Throwable {
+        if (stopped) {
+            throw new IllegalStateException("GroupCommitter stopped");
+        }
+        PendingCall call = new PendingCall(work);
+        queue.put(call);
+        // stopped while putting: the committer may have drained the queue already, nobody would take this call
+        if (stopped && queue.remove(call)) {
+            throw new IllegalStateException("GroupCommitter stopped");
+        }
+        try {
+            return call.result.get(callTimeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (ExecutionException ex) {
+            throw ex.getCause();
+        } catch (TimeoutException ex) {
+            throw new TransactionTimedOutException(queue.remove(call)
+                    ? "Group commit did not start within the call timeout"
+                    : "Group commit did not complete within the call timeout, the call may still commit");
+        }
+    }
+
+    long commits() {
+        return commits.get();
+    }
+
+    long failures() {
+        return failures.get();
+    }
+
+    @Override
+    public void destroy() {
+        stopped = true;
+        committer.interrupt();
+    }
+
+    private void run() {
+        List<PendingCall> batch = new ArrayList<>(maxBatchSize);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + maxLatencyNanos;
+                while (batch.size() < maxBatchSize) {
+                    PendingCall next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            batch.addAll(queue);
+            batch.forEach(call -> call.result.completeExceptionally(new IllegalStateException("GroupCommitter stopped")));
+        }
+    }
+
+    private void commit(List<PendingCall> batch) {
+        List<Object> results = new ArrayList<>(batch.size());
+        List<Throwable> errors = new ArrayList<>(batch.size());
+        try {
+            TransactionStatus status = transactionManager.getTransaction(TransactionDefinition.withDefaults());
+            try {
+                for (PendingCall call : batch) {
+                    Object savepoint = status.createSavepoint();
+                    try {
+                        results.add(call.work.run());
+                        errors.add(null);
+                        status.releaseSavepoint(savepoint);
+                    } catch (Throwable ex) {
+                        status.rollbackToSavepoint(savepoint);
+                        results.add(null);
+                        errors.add(ex);
+                    }
+                }
+            } catch (Throwable ex) {
+                MyTransactionInterceptor.rollback(transactionManager, status, ex);
+                throw ex;
+            }
+            transactionManager.commit(status);
+        } catch (Throwable ex) {
+            batch.forEach(call -> call.result.completeExceptionally(ex));
+            failures.addAndGet(batch.size());
+            return;
+        }
+
+        commits.incrementAndGet();
+        for (int i = 0; i < batch.size(); i++) {
+            if (errors.get(i) != null) {
+                failures.incrementAndGet();
+                batch.get(i).result.completeExceptionally(errors.get(i));
+            } else {
+                batch.get(i).result.complete(results.get(i));
+            }
+        }
+    }
+
+    interface Work {
+        Object run() throws Throwable;
+    }
+
+    private record PendingCall(Work work, CompletableFuture<Object> result) {
+        PendingCall(Work work) {
+            this(work, new CompletableFuture<>());
+        }
+    }
+}
+
+class DefaultCustomerService implements CustomerService {
+    private final JdbcClient jdbcClient;
+    private final AuditService auditService;
+
+    DefaultCustomerService(JdbcClient jdbcClient, AuditService auditService) {
+        this.jdbcClient = jdbcClient;
+        this.auditService = auditService;
+    }
+
+    @Override
+    public void create(String name) {
+        jdbcClient.sql("insert into customers (name) values (?)").param(name).update();
+    }
+
+    @Override
+    public void createAll(List<String> names) {
+        auditService.record("creating " + names.size() + " customers");
+        names.forEach(this::create);
+    }
+
+    @Override
+    public long count() {
+        return jdbcClient.sql("select count(*) from customers").query(Long.class).single();
+    }
+}
+
+interface CustomerService {
+    @MyTransactional(groupCommit = true)
+    void create(String name);
+
+    @MyTransactional
+    void createAll(List<String> names);
+
+    long count();
+}
+
+class DefaultAuditService implements AuditService {
+    private final JdbcClient jdbcClient;
+
+    DefaultAuditService(JdbcClient jdbcClient) {
+        this.jdbcClient = jdbcClient;
+    }
+
+    @Override
+    public void record(String message) {
+        jdbcClient.sql("insert into audit_log (message) values (?)").param(message).update();
+    }
+}
+
+interface AuditService {
+    @MyTransactional(propagation = Propagation.REQUIRES_NEW)
+    void record(String message);
+}
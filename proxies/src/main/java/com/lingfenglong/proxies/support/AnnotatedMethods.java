@@ -0,0 +1,53 @@
+package com.lingfenglong.proxies.support;
+
+import org.springframework.util.ConcurrentReferenceHashMap;
+import org.springframework.util.ReflectionUtils;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+/**
+ * Whether a class, or one of the interfaces it implements, has methods carrying an annotation such as
+ * {@code @MyTransactional}. The answer is kept per class, weakly keyed so classes can still be unloaded.
+ */
+public final class AnnotatedMethods {
+    private final Class<? extends Annotation> annotationType;
+    private final Map<Class<?>, Boolean> classes =
+            new ConcurrentReferenceHashMap<>(256, ConcurrentReferenceHashMap.ReferenceType.WEAK);
+
+    private AnnotatedMethods(Class<? extends Annotation> annotationType) {
+        this.annotationType = annotationType;
+    }
+
+    public static AnnotatedMethods of(Class<? extends Annotation> annotationType) {
+        return new AnnotatedMethods(annotationType);
+    }
+
+    public boolean foundOn(Object o) {
+        return foundOn(o.getClass());
+    }
+
+    public boolean foundOn(Class<?> clazz) {
+        return classes.computeIfAbsent(clazz, c -> {
+            if (declares(c)) {
+                return true;
+            }
+            for (Class<?> ifc : c.getInterfaces()) {
+                if (declares(ifc)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    private boolean declares(Class<?> clazz) {
+        for (Method method : ReflectionUtils.getAllDeclaredMethods(clazz)) {
+            if (method.getAnnotation(annotationType) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
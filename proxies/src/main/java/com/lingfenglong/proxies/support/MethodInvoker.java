@@ -0,0 +1,226 @@
+package com.lingfenglong.proxies.support;
+
+import java.lang.invoke.*;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Calls one method of one target through code bound once, instead of going through
+ * {@link Method#invoke(Object, Object...)} and its access checks on every call.
+ * <p>
+ * Methods with up to three parameters are bound with {@link LambdaMetafactory}, which spins a small class that
+ * calls the method directly, so the JIT can inline it like any other call. Longer parameter lists fall back to a
+ * bound {@link MethodHandle} called with {@code invokeExact}. Either way exceptions thrown by the target are
+ * rethrown as they are, not wrapped in an {@link java.lang.reflect.InvocationTargetException}.
+ */
+public abstract class MethodInvoker {
+    private static final MethodType SPREAD_TYPE = MethodType.methodType(Object.class, Object[].class);
+
+    private final Method method;
+
+    private MethodInvoker(Method method) {
+        this.method = method;
+    }
+
+    /**
+     * @param lookup a lookup with full privilege access to {@code method}'s declaring class, usually
+     *               {@code MethodHandles.lookup()} of the caller
+     */
+    public static MethodInvoker of(MethodHandles.Lookup lookup, Object target, Method method) {
+        if (Modifier.isStatic(method.getModifiers())) {
+            throw new IllegalArgumentException("Cannot bind static method " + method + " to a target");
+        }
+        try {
+            MethodHandle handle = lookup.unreflect(method);
+            boolean isVoid = method.getReturnType() == void.class;
+            return switch (method.getParameterCount()) {
+                case 0 -> new Invoker0(method, target, isVoid
+                        ? returningNull(spin(lookup, handle, VoidFunction0.class))
+                        : spin(lookup, handle, Function0.class));
+                case 1 -> new Invoker1(method, target, isVoid
+                        ? returningNull(spin(lookup, handle, VoidFunction1.class))
+                        : spin(lookup, handle, Function1.class));
+                case 2 -> new Invoker2(method, target, isVoid
+                        ? returningNull(spin(lookup, handle, VoidFunction2.class))
+                        : spin(lookup, handle, Function2.class));
+                case 3 -> new Invoker3(method, target, isVoid
+                        ? returningNull(spin(lookup, handle, VoidFunction3.class))
+                        : spin(lookup, handle, Function3.class));
+                default -> new SpreadInvoker(method, handle.bindTo(target)
+                        .asSpreader(Object[].class, method.getParameterCount())
+                        .asType(SPREAD_TYPE));
+            };
+        } catch (Throwable ex) {
+            throw new IllegalStateException("Cannot bind " + method + " with " + lookup, ex);
+        }
+    }
+
+    /**
+     * Implements {@code functionalInterface}, whose single method takes the target and the arguments as
+     * {@code Object}s, by calling {@code handle} directly.
+     */
+    private static <T> T spin(MethodHandles.Lookup lookup, MethodHandle handle, Class<T> functionalInterface) throws Throwable {
+        MethodType implType = handle.type();
+        MethodType samType = MethodType.genericMethodType(implType.parameterCount());
+        if (implType.returnType() == void.class) {
+            samType = samType.changeReturnType(void.class);
+        }
+        CallSite callSite = LambdaMetafactory.metafactory(
+                lookup,
+                "invoke",
+                MethodType.methodType(functionalInterface),
+                samType,
+                handle,
+                implType.wrap().changeReturnType(samType.returnType()));
+        return functionalInterface.cast(callSite.getTarget().invoke());
+    }
+
+    // LambdaMetafactory cannot adapt a void method to return Object, so void methods get a null-returning wrapper
+
+    private static Function0 returningNull(VoidFunction0 function) {
+        return target -> {
+            function.invoke(target);
+            return null;
+        };
+    }
+
+    private static Function1 returningNull(VoidFunction1 function) {
+        return (target, a0) -> {
+            function.invoke(target, a0);
+            return null;
+        };
+    }
+
+    private static Function2 returningNull(VoidFunction2 function) {
+        return (target, a0, a1) -> {
+            function.invoke(target, a0, a1);
+            return null;
+        };
+    }
+
+    private static Function3 returningNull(VoidFunction3 function) {
+        return (target, a0, a1, a2) -> {
+            function.invoke(target, a0, a1, a2);
+            return null;
+        };
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * @param args the arguments, may be {@code null} for a method without parameters
+     */
+    public abstract Object invoke(Object[] args) throws Throwable;
+
+    public interface Function0 {
+        Object invoke(Object target);
+    }
+
+    public interface Function1 {
+        Object invoke(Object target, Object a0);
+    }
+
+    public interface Function2 {
+        Object invoke(Object target, Object a0, Object a1);
+    }
+
+    public interface Function3 {
+        Object invoke(Object target, Object a0, Object a1, Object a2);
+    }
+
+    public interface VoidFunction0 {
+        void invoke(Object target);
+    }
+
+    public interface VoidFunction1 {
+        void invoke(Object target, Object a0);
+    }
+
+    public interface VoidFunction2 {
+        void invoke(Object target, Object a0, Object a1);
+    }
+
+    public interface VoidFunction3 {
+        void invoke(Object target, Object a0, Object a1, Object a2);
+    }
+
+    private static final class Invoker0 extends MethodInvoker {
+        private final Object target;
+        private final Function0 function;
+
+        Invoker0(Method method, Object target, Function0 function) {
+            super(method);
+            this.target = target;
+            this.function = function;
+        }
+
+        @Override
+        public Object invoke(Object[] args) {
+            return function.invoke(target);
+        }
+    }
+
+    private static final class Invoker1 extends MethodInvoker {
+        private final Object target;
+        private final Function1 function;
+
+        Invoker1(Method method, Object target, Function1 function) {
+            super(method);
+            this.target = target;
+            this.function = function;
+        }
+
+        @Override
+        public Object invoke(Object[] args) {
+            return function.invoke(target, args[0]);
+        }
+    }
+
+    private static final class Invoker2 extends MethodInvoker {
+        private final Object target;
+        private final Function2 function;
+
+        Invoker2(Method method, Object target, Function2 function) {
+            super(method);
+            this.target = target;
+            this.function = function;
+        }
+
+        @Override
+        public Object invoke(Object[] args) {
+            return function.invoke(target, args[0], args[1]);
+        }
+    }
+
+    private static final class Invoker3 extends MethodInvoker {
+        private final Object target;
+        private final Function3 function;
+
+        Invoker3(Method method, Object target, Function3 function) {
+            super(method);
+            this.target = target;
+            this.function = function;
+        }
+
+        @Override
+        public Object invoke(Object[] args) {
+            return function.invoke(target, args[0], args[1], args[2]);
+        }
+    }
+
+    private static final class SpreadInvoker extends MethodInvoker {
+        private final MethodHandle handle;
+
+        SpreadInvoker(Method method, MethodHandle handle) {
+            super(method);
+            this.handle = handle;
+        }
+
+        @Override
+        public Object invoke(Object[] args) throws Throwable {
+            return (Object) handle.invokeExact(args);
+        }
+    }
+}
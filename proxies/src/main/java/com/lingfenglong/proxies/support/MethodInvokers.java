@@ -0,0 +1,47 @@
+package com.lingfenglong.proxies.support;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link MethodInvoker}s of one target, bound when the proxy is created. Methods that were not known up front
+ * (e.g. {@code toString} on a JDK proxy) are bound on their first call.
+ */
+public final class MethodInvokers {
+    private final MethodHandles.Lookup lookup;
+    private final Object target;
+    private final Map<Method, MethodInvoker> invokers = new ConcurrentHashMap<>();
+
+    private MethodInvokers(MethodHandles.Lookup lookup, Object target) {
+        this.lookup = lookup;
+        this.target = target;
+    }
+
+    /**
+     * @param lookup a lookup that can access the methods of {@code types}, usually {@code MethodHandles.lookup()}
+     *               of the caller
+     * @param types  the interfaces (or class) the proxy exposes, all their public instance methods are bound now
+     */
+    public static MethodInvokers of(MethodHandles.Lookup lookup, Object target, Class<?>... types) {
+        MethodInvokers methodInvokers = new MethodInvokers(lookup, target);
+        for (Class<?> type : types) {
+            for (Method method : type.getMethods()) {
+                if (!Modifier.isStatic(method.getModifiers())) {
+                    methodInvokers.invokers.put(method, MethodInvoker.of(lookup, target, method));
+                }
+            }
+        }
+        return methodInvokers;
+    }
+
+    public Object invoke(Method method, Object[] args) throws Throwable {
+        MethodInvoker invoker = invokers.get(method);
+        if (invoker == null) {
+            invoker = invokers.computeIfAbsent(method, m -> MethodInvoker.of(lookup, target, m));
+        }
+        return invoker.invoke(args);
+    }
+}
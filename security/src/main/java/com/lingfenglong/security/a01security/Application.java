@@ -1,19 +1,32 @@
 package com.lingfenglong.security.a01security;
 
+import com.lingfenglong.security.support.AccessLog;
+import com.lingfenglong.security.support.AuditLog;
+import com.lingfenglong.security.support.AuthorityIndex;
 import org.junit.jupiter.api.Test;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Bean;
 import org.springframework.security.authentication.TestingAuthenticationToken;
 import org.springframework.security.authorization.AuthorizationDeniedException;
 import org.springframework.security.core.Authentication;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.test.context.support.WithMockUser;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -22,6 +35,30 @@ public class Application {
     public static void main(String[] args) {
         SpringApplication.run(Application.class, args);
     }
+
+    /**
+     * audits accesses to a file from a background thread rather than logging them, once {@code security.audit.file}
+     * is set
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty("security.audit.file")
+    static AuditLog auditLog(@Value("${security.audit.file}") Path file,
+                             @Value("${security.audit.capacity:8192}") int capacity,
+                             @Value("${security.audit.overflow:BLOCK}") AuditLog.Overflow overflow,
+                             @Value("${security.audit.fsync:INTERVAL}") AuditLog.Fsync fsync) throws IOException {
+        return new AuditLog(file, capacity, overflow, fsync);
+    }
+
+    /**
+     * makes the audit log the {@link AccessLog} listener and puts the previous one back on shutdown, before the
+     * audit log it depends on is closed
+     */
+    @Bean
+    @ConditionalOnProperty("security.audit.file")
+    static DisposableBean auditLogListener(AuditLog auditLog) {
+        Consumer<AccessLog.AccessEvent> previous = AccessLog.setListener(auditLog);
+        return () -> AccessLog.setListener(previous);
+    }
 }
 
 @SpringBootTest
@@ -69,11 +106,189 @@ class BankAccountServiceTest {
                 () -> bankAccountService.findById(1L)
         );
     }
+
+    @Test
+    public void authorityIndexFollowsTheAuthentication() {
+        int admin = AuthorityIndex.role("ADMIN");
+        Authentication cc = new TestingAuthenticationToken("cc", "idontknow", "ROLE_USER", "ROLE_ADMIN");
+        Authentication lfl = new TestingAuthenticationToken("lfl", "idontknow", "ROLE_MANAGER");
+
+        assertTrue(AuthorityIndex.hasAuthority(cc, admin));
+        assertSame(AuthorityIndex.of(cc), AuthorityIndex.of(cc));
+        AuthorityIndex ccIndex = AuthorityIndex.of(cc);
+        assertFalse(AuthorityIndex.hasAuthority(lfl, admin));
+        assertTrue(AuthorityIndex.hasAuthority(cc, admin));
+        // kept while the thread checked someone else
+        assertSame(ccIndex, AuthorityIndex.of(cc));
+        assertFalse(AuthorityIndex.hasAuthority(cc, AuthorityIndex.authority("ROLE_UNKNOWN")));
+        assertFalse(AuthorityIndex.hasAuthority(null, admin));
+
+        // SCOPE_accounts gets an id only once asked about, after the index of scoped was built without it
+        Authentication scoped = new TestingAuthenticationToken("cc", "idontknow", "ROLE_ADMIN", "SCOPE_accounts");
+        assertTrue(AuthorityIndex.hasAuthority(scoped, admin));
+        assertTrue(AuthorityIndex.hasAuthority(scoped, AuthorityIndex.authority("SCOPE_accounts")));
+    }
+
+    @Test
+    public void findByIdKeepsTheAuthentication() {
+        Authentication cc = new TestingAuthenticationToken("cc", "idontknow", "ROLE_ADMIN");
+        SecurityContextHolder.getContext().setAuthentication(cc);
+        AtomicInteger granted = new AtomicInteger();
+        Consumer<AccessLog.AccessEvent> previous = AccessLog.setListener(event -> granted.incrementAndGet());
+        try {
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            System.gc();
+            long before = memory.getHeapMemoryUsage().getUsed();
+            for (int i = 0; i < 100_000; i++) {
+                bankAccountService.findById(1L);
+            }
+            System.gc();
+            long after = memory.getHeapMemoryUsage().getUsed();
+
+            // it used to wrap the authentication once more on every call, 100k levels deep
+            assertSame(cc, SecurityContextHolder.getContext().getAuthentication());
+            assertEquals(100_000, granted.get());
+            assertTrue(after - before < 8 * 1024 * 1024, () -> "heap grew by " + (after - before) + " bytes");
+        } finally {
+            AccessLog.setListener(previous);
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+    @Test
+    public void findByIdWithoutAnIdIsRecorded() {
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("cc", "idontknow", "ROLE_ADMIN"));
+        List<AccessLog.AccessEvent> events = new ArrayList<>();
+        Consumer<AccessLog.AccessEvent> previous = AccessLog.setListener(events::add);
+        try {
+            assertNull(bankAccountService.findById(null).id());
+            assertEquals(AccessLog.NO_ID, events.get(0).id());
+        } finally {
+            AccessLog.setListener(previous);
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+    @Test
+    public void auditLogWritesEveryAccess() throws IOException {
+        Path file = Files.createTempFile("audit", ".log");
+        AuditLog auditLog = new AuditLog(file, 64, AuditLog.Overflow.BLOCK, AuditLog.Fsync.BATCH);
+        Consumer<AccessLog.AccessEvent> previous = AccessLog.setListener(auditLog);
+        try {
+            SecurityContextHolder.getContext().setAuthentication(
+                    new TestingAuthenticationToken("cc", "idontknow", "ROLE_ADMIN"));
+            for (long id = 0; id < 1000; id++) {
+                bankAccountService.findById(id);
+            }
+            SecurityContextHolder.getContext().setAuthentication(
+                    new TestingAuthenticationToken("lfl", "idontknow", "ROLE_MANAGER"));
+            assertThrows(AuthorizationDeniedException.class, () -> bankAccountService.findById(7L));
+        } finally {
+            AccessLog.setListener(previous);
+            SecurityContextHolder.clearContext();
+            auditLog.close();
+        }
+
+        List<String> lines = Files.readAllLines(file);
+        AuditLog.Stats stats = auditLog.stats();
+        assertEquals(1001, lines.size());
+        assertEquals(1001, stats.written());
+        assertEquals(0, stats.failed());
+        assertEquals(0, stats.dropped());
+        assertTrue(lines.get(999).endsWith("\tcc\tBankAccountService.findById\t999\tGRANTED"), lines.get(999));
+        assertTrue(lines.get(1000).endsWith("\tlfl\tBankAccountService.findById\t7\tDENIED"), lines.get(1000));
+        Files.delete(file);
+    }
+
+    @Test
+    public void auditLogWritesWhatIsTakenWhileClosing() throws Exception {
+        // the race is a few instructions wide, so this catches it in some runs rather than every one
+        for (int round = 0; round < 500; round++) {
+            Path file = Files.createTempFile("audit", ".log");
+            AuditLog auditLog = new AuditLog(file, 64, AuditLog.Overflow.BLOCK, AuditLog.Fsync.NEVER);
+            List<Thread> producers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                Thread producer = new Thread(() -> {
+                    long id = 0;
+                    while (auditLog.append("cc", "BankAccountService.findById", id, true, id)) {
+                        id++;
+                    }
+                });
+                producer.start();
+                producers.add(producer);
+            }
+            Thread.sleep(0, 100_000);
+            // the producers race the close, whatever one of them got in must still be written
+            auditLog.close();
+            for (Thread producer : producers) {
+                producer.join();
+            }
+
+            AuditLog.Stats stats = auditLog.stats();
+            assertEquals(stats.enqueued(), stats.written());
+            assertEquals(stats.written(), Files.readAllLines(file).size());
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void auditLogListenerIsPutBackOnShutdown() throws Exception {
+        Path file = Files.createTempFile("audit", ".log");
+        Consumer<AccessLog.AccessEvent> listener = event -> {
+        };
+        Consumer<AccessLog.AccessEvent> previous = AccessLog.setListener(listener);
+        try {
+            AuditLog auditLog = Application.auditLog(file, 8, AuditLog.Overflow.BLOCK, AuditLog.Fsync.NEVER);
+            DisposableBean auditLogListener = Application.auditLogListener(auditLog);
+            auditLogListener.destroy();
+            auditLog.close();
+
+            assertSame(listener, AccessLog.setListener(previous));
+        } finally {
+            AccessLog.setListener(previous);
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void auditLogEscapesThePrincipal() throws IOException {
+        Path file = Files.createTempFile("audit", ".log");
+        AuditLog auditLog = new AuditLog(file, 8, AuditLog.Overflow.BLOCK, AuditLog.Fsync.NEVER);
+        // unescaped, it would end the record as DENIED and start a forged one for cc
+        String principal = "lfl\tBankAccountService.findById\t7\tDENIED\n0\tcc\\";
+        auditLog.append(principal, "BankAccountService.findById", 7, true, 0);
+        auditLog.close();
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(1, lines.size());
+        String[] fields = lines.get(0).split("\t");
+        assertEquals(5, fields.length);
+        assertEquals("lfl\\tBankAccountService.findById\\t7\\tDENIED\\n0\\tcc\\\\", fields[1]);
+        assertEquals("GRANTED", fields[4]);
+        Files.delete(file);
+    }
+
+    @Test
+    public void auditLogCountsDroppedEvents() throws IOException {
+        Path file = Files.createTempFile("audit", ".log");
+        AuditLog auditLog = new AuditLog(file, 2, AuditLog.Overflow.DROP, AuditLog.Fsync.NEVER);
+        for (long id = 0; id < 10_000; id++) {
+            auditLog.append("cc", "BankAccountService.findById", id, true, id);
+        }
+        auditLog.close();
+
+        AuditLog.Stats stats = auditLog.stats();
+        assertEquals(10_000, stats.enqueued() + stats.dropped());
+        assertEquals(stats.enqueued(), stats.written());
+        assertEquals(stats.written(), Files.readAllLines(file).size());
+        assertFalse(auditLog.append("cc", "BankAccountService.findById", 0, true, 0));
+        Files.delete(file);
+    }
 }
 
 class DefaultBankAccountService implements BankAccountService {
-
-    private static final Logger log = LoggerFactory.getLogger(DefaultBankAccountService.class);
+    private static final int ROLE_ADMIN = AuthorityIndex.role("ADMIN");
 
     @Override
     public BankAccount findById(Long id) {
@@ -81,14 +296,14 @@ class DefaultBankAccountService implements BankAccountService {
 
         BankAccount ccBankAccount = new BankAccount(id, "cc", BigDecimal.valueOf(100));
 
-        if (!authentication.getAuthorities().contains(new SimpleGrantedAuthority("ROLE_ADMIN"))) {
+        if (!AuthorityIndex.hasAuthority(authentication, ROLE_ADMIN)) {
+            AccessLog.denied(authentication, "BankAccountService.findById", id);
             throw new AuthorizationDeniedException(
                     "Only ROLE_ADMIN is supported",
                     () -> false
             );
         } else {
-            log.info("{}: {} accessed", getClass().getName(), authentication.getName());
-            SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken(authentication, null));
+            AccessLog.granted(authentication, "BankAccountService.findById", id);
         }
 
         return ccBankAccount;
@@ -1,15 +1,13 @@
 package com.lingfenglong.security.a02proxycglib;
 
+import com.lingfenglong.security.support.AccessLog;
+import com.lingfenglong.security.support.AuthorityIndex;
 import org.junit.jupiter.api.Test;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.security.authentication.TestingAuthenticationToken;
 import org.springframework.security.authorization.AuthorizationDeniedException;
 import org.springframework.security.core.Authentication;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.test.context.support.WithMockUser;
 
@@ -65,7 +63,7 @@ class BankAccountServiceTest {
 }
 
 class BankAccountServiceProxy extends DefaultBankAccountService {
-    private static final Logger log = LoggerFactory.getLogger(DefaultBankAccountService.class);
+    private static final int ROLE_ADMIN = AuthorityIndex.role("ADMIN");
 
     @Override
     public BankAccount findById(Long id) {
@@ -73,14 +71,14 @@ class BankAccountServiceProxy extends DefaultBankAccountService {
 
         BankAccount bankAccount = super.findById(id);
 
-        if (!authentication.getAuthorities().contains(new SimpleGrantedAuthority("ROLE_ADMIN"))) {
+        if (!AuthorityIndex.hasAuthority(authentication, ROLE_ADMIN)) {
+            AccessLog.denied(authentication, "BankAccountService.findById", id);
             throw new AuthorizationDeniedException(
                     "Only ROLE_ADMIN is supported",
                     () -> false
             );
         } else {
-            log.info("{}: {} accessed", getClass().getName(), authentication.getName());
-            SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken(authentication, null));
+            AccessLog.granted(authentication, "BankAccountService.findById", id);
         }
 
         return bankAccount;
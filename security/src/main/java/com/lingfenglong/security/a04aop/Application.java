@@ -1,21 +1,22 @@
 package com.lingfenglong.security.a04aop;
 
+import com.lingfenglong.security.support.AccessLog;
+import com.lingfenglong.security.support.AuthorityIndex;
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 import org.junit.jupiter.api.Test;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.springframework.aop.Advisor;
 import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.aop.framework.AdvisorChainFactory;
 import org.springframework.aop.framework.AopProxy;
 import org.springframework.aop.framework.DefaultAopProxyFactory;
 import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.support.NameMatchMethodPointcutAdvisor;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.security.authentication.TestingAuthenticationToken;
 import org.springframework.security.authorization.AuthorizationDeniedException;
 import org.springframework.security.core.Authentication;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.test.context.support.WithMockUser;
 
@@ -23,6 +24,7 @@ import java.lang.reflect.Method;
 import java.math.BigDecimal;
 
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 @SpringBootApplication
@@ -34,31 +36,17 @@ public class Application {
 
 @SpringBootTest
 class BankAccountServiceTest {
-    private static final Logger log = LoggerFactory.getLogger(BankAccountServiceTest.class);
-
+    AspectJProxyFactory proxyFactory;
     AopProxy aopProxy;
     BankAccountService bankAccountService;
 
     {
         DefaultBankAccountService target = new DefaultBankAccountService();
-        AspectJProxyFactory proxyFactory = new AspectJProxyFactory(target);
-        proxyFactory.addAdvice((MethodInterceptor) invocation -> {
-            if (invocation.getMethod().getName().equals("findById")) {
-                Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-
-                if (!authentication.getAuthorities().contains(new SimpleGrantedAuthority("ROLE_ADMIN"))) {
-                    throw new AuthorizationDeniedException(
-                            "Only ROLE_ADMIN is supported",
-                            () -> false
-                    );
-                }
-
-                log.info("{}: {} accessed", getClass().getName(), authentication.getName());
-                SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken(authentication, null));
-            }
-
-            return invocation.proceed();
-        });
+        proxyFactory = new AspectJProxyFactory(target);
+        proxyFactory.addAdvisor(FindByIdAuthorization.advisor());
+        // frozen, a CGLIB proxy hands the methods without advice straight to the target
+        proxyFactory.setProxyTargetClass(true);
+        proxyFactory.setFrozen(true);
 
         aopProxy = DefaultAopProxyFactory.INSTANCE
                 .createAopProxy(proxyFactory);
@@ -99,6 +87,50 @@ class BankAccountServiceTest {
                 () -> bankAccountService.getById(1L)
         );
     }
+
+    @Test
+    public void onlyFindByIdIsAdvised() throws NoSuchMethodException {
+        AdvisorChainFactory chainFactory = proxyFactory.getAdvisorChainFactory();
+        Method findById = BankAccountService.class.getMethod("findById", Long.class);
+        Method getById = BankAccountService.class.getMethod("getById", Long.class);
+
+        assertEquals(1, chainFactory.getInterceptorsAndDynamicInterceptionAdvice(
+                proxyFactory, findById, DefaultBankAccountService.class).size());
+        assertEquals(0, chainFactory.getInterceptorsAndDynamicInterceptionAdvice(
+                proxyFactory, getById, DefaultBankAccountService.class).size());
+    }
+}
+
+/**
+ * The authorization of {@link BankAccountService#findById}, advising that method only: the pointcut is matched once
+ * per method when the proxy first builds its chain, so {@code getById} goes straight to the target instead of
+ * through an interceptor comparing method names on every call.
+ */
+class FindByIdAuthorization implements MethodInterceptor {
+    private static final int ROLE_ADMIN = AuthorityIndex.role("ADMIN");
+
+    static Advisor advisor() {
+        NameMatchMethodPointcutAdvisor advisor = new NameMatchMethodPointcutAdvisor(new FindByIdAuthorization());
+        advisor.setMappedName("findById");
+        return advisor;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        Long id = (Long) invocation.getArguments()[0];
+
+        if (!AuthorityIndex.hasAuthority(authentication, ROLE_ADMIN)) {
+            AccessLog.denied(authentication, "BankAccountService.findById", id);
+            throw new AuthorizationDeniedException(
+                    "Only ROLE_ADMIN is supported",
+                    () -> false
+            );
+        }
+
+        AccessLog.granted(authentication, "BankAccountService.findById", id);
+        return invocation.proceed();
+    }
 }
 
 class DefaultBankAccountService implements BankAccountService {
@@ -0,0 +1,10 @@
+package com.lingfenglong.security.a05annotation;
+
+import java.math.BigDecimal;
+
+public interface Account {
+    Long id();
+    String username();
+    String account();
+    BigDecimal balance();
+}
@@ -1,24 +1,43 @@
 package com.lingfenglong.security.a05annotation;
 
+import com.lingfenglong.security.support.CompilingExpressionParser;
+import com.lingfenglong.security.support.MethodSecurityExpressions;
 import org.junit.jupiter.api.Test;
+import org.springframework.aop.Advisor;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.AdvisorChainFactory;
+import org.springframework.aop.framework.DefaultAdvisorChainFactory;
+import org.springframework.aop.framework.ProxyFactory;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.MethodClassKey;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.security.access.expression.method.DefaultMethodSecurityExpressionHandler;
+import org.springframework.security.access.expression.method.MethodSecurityExpressionHandler;
 import org.springframework.security.access.prepost.PostAuthorize;
 import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.authentication.TestingAuthenticationToken;
 import org.springframework.security.authorization.AuthorizationDeniedException;
-import org.springframework.security.authorization.method.AuthorizationAdvisorProxyFactory;
+import org.springframework.security.authorization.method.*;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.config.annotation.method.configuration.EnableMethodSecurity;
 import org.springframework.security.test.context.support.WithMockUser;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ConcurrentReferenceHashMap;
 
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
-import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
-import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.*;
 
 @SpringBootApplication
 @EnableMethodSecurity
@@ -30,8 +49,8 @@ public class Application {
 
 @SpringBootTest
 class BankAccountServiceTest {
-    AuthorizationAdvisorProxyFactory proxyFactory = AuthorizationAdvisorProxyFactory.withDefaults();
-    BankAccountService bankAccountService = (BankAccountService) proxyFactory.proxy(new DefaultBankAccountService());
+    AuthorizationReturnValueProxies proxies = AuthorizationReturnValueProxies.withDefaults();
+    BankAccountService bankAccountService = (BankAccountService) proxies.proxy(new DefaultBankAccountService());
 
     @Test
     @WithMockUser(username = "cc", roles = {"ADMIN"})
@@ -92,17 +111,199 @@ class BankAccountServiceTest {
                 () -> bankAccountService.findById(1L).account()
         );
     }
+
+    @Test
+    @WithMockUser(username = "cc")
+    public void proxiesShareGeneratedClass() {
+        Object first = proxies.proxy(new DefaultBankAccountService());
+        Object second = proxies.proxy(new DefaultBankAccountService());
+        assertSame(first.getClass(), second.getClass());
+        assertSame(bankAccountService.findById(1L).getClass(), bankAccountService.findById(2L).getClass());
+    }
+
+    @Test
+    public void expressionsCompile() {
+        assertEquals(List.of(), MethodSecurityExpressions.verify(true, List.of(DefaultBankAccountService.class)));
+        try {
+            // every part of an expression has to run once before it compiles, so both sides of the "or"
+            for (int i = 0; i < 2; i++) {
+                authenticate("lfl", "ROLE_ADMIN");
+                Account account = bankAccountService.findById(1L);
+                assertThrows(AuthorizationDeniedException.class, account::account);
+
+                authenticate("lfl", "ROLE_USER");
+                assertThrows(AuthorizationDeniedException.class, () -> bankAccountService.findById(1L));
+
+                authenticate("cc", "ROLE_USER");
+                assertEquals("123456", bankAccountService.findById(1L).account());
+            }
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+        assertEquals(List.of(), AuthorizationReturnValueProxies.interpreted());
+    }
+
+    @Test
+    public void uncompilableExpressionsAreReported() {
+        List<MethodSecurityExpressions.Interpreted> interpreted =
+                MethodSecurityExpressions.verify(List.of(PackagePrivateAccounts.class));
+        assertEquals(1, interpreted.size());
+        assertEquals("PackagePrivateAccount is not public", interpreted.get(0).reason());
+        assertThrows(IllegalStateException.class,
+                () -> MethodSecurityExpressions.verify(true, List.of(PackagePrivateAccounts.class)));
+    }
+
+    @Test
+    public void brokenExpressionsFailVerification() {
+        assertThrows(IllegalStateException.class, () -> MethodSecurityExpressions.verify(List.of(BrokenAccounts.class)));
+    }
+
+    private static void authenticate(String username, String authority) {
+        SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken(username, null, authority));
+    }
+
+    static class PackagePrivateAccounts {
+        @PostAuthorize("returnObject.owner == authentication.name")
+        public PackagePrivateAccount find() {
+            return new PackagePrivateAccount("cc");
+        }
+    }
+
+    record PackagePrivateAccount(String owner) {
+    }
+
+    static class BrokenAccounts {
+        @PreAuthorize("hasRole('ADMIN'")
+        public void find() {
+        }
+    }
+}
+
+/**
+ * Proxies return values with one {@link AuthorizationAdvisorProxyFactory} for every call. A new factory builds
+ * new advisors, whose annotation and expression caches start cold and which CGLIB does not recognise as the
+ * config of an already generated class. Per return type the interfaces are resolved once, and the interceptor
+ * chain of a method is computed once for all proxies instead of once per proxy. The advisors are read when this
+ * is created, safe to share between threads. The defaults compile their expressions, see {@link #interpreted()}.
+ */
+final class AuthorizationReturnValueProxies {
+    private static final CompilingExpressionParser EXPRESSION_PARSER = new CompilingExpressionParser();
+    private static final AuthorizationReturnValueProxies DEFAULTS =
+            new AuthorizationReturnValueProxies(proxyFactory(expressionHandler(EXPRESSION_PARSER)));
+
+    private final AuthorizationAdvisorProxyFactory proxyFactory;
+    private final AuthorizationAdvisorProxyFactory.TargetVisitor visitor =
+            AuthorizationAdvisorProxyFactory.TargetVisitor.defaults();
+    private final Advisor[] advisors;
+    private final AdvisorChainFactory advisorChainFactory = new SharedAdvisorChainFactory();
+    private final Map<Class<?>, Class<?>[]> interfaces =
+            new ConcurrentReferenceHashMap<>(256, ConcurrentReferenceHashMap.ReferenceType.WEAK);
+
+    AuthorizationReturnValueProxies(AuthorizationAdvisorProxyFactory proxyFactory) {
+        this.proxyFactory = proxyFactory;
+        this.proxyFactory.setTargetVisitor(visitor);
+        List<Advisor> advisors = new ArrayList<>();
+        proxyFactory.forEach(advisors::add);
+        this.advisors = advisors.toArray(Advisor[]::new);
+    }
+
+    static AuthorizationReturnValueProxies withDefaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * the expressions of the defaults still running interpreted
+     */
+    static List<String> interpreted() {
+        return EXPRESSION_PARSER.interpreted();
+    }
+
+    static DefaultMethodSecurityExpressionHandler expressionHandler(ExpressionParser expressionParser) {
+        DefaultMethodSecurityExpressionHandler expressionHandler = new DefaultMethodSecurityExpressionHandler();
+        expressionHandler.setExpressionParser(expressionParser);
+        return expressionHandler;
+    }
+
+    /**
+     * {@link AuthorizationAdvisorProxyFactory#withDefaults()}, its expression based advisors using
+     * {@code expressionHandler}
+     */
+    static AuthorizationAdvisorProxyFactory proxyFactory(MethodSecurityExpressionHandler expressionHandler) {
+        AuthorizationAdvisorProxyFactory proxyFactory = AuthorizationAdvisorProxyFactory.withDefaults();
+        PreAuthorizeAuthorizationManager preAuthorize = new PreAuthorizeAuthorizationManager();
+        preAuthorize.setExpressionHandler(expressionHandler);
+        PostAuthorizeAuthorizationManager postAuthorize = new PostAuthorizeAuthorizationManager();
+        postAuthorize.setExpressionHandler(expressionHandler);
+        PreFilterAuthorizationMethodInterceptor preFilter = new PreFilterAuthorizationMethodInterceptor();
+        preFilter.setExpressionHandler(expressionHandler);
+        PostFilterAuthorizationMethodInterceptor postFilter = new PostFilterAuthorizationMethodInterceptor();
+        postFilter.setExpressionHandler(expressionHandler);
+
+        List<AuthorizationAdvisor> advisors = new ArrayList<>();
+        for (AuthorizationAdvisor advisor : proxyFactory) {
+            if (advisor.getOrder() == AuthorizationInterceptorsOrder.PRE_FILTER.getOrder()) {
+                advisors.add(preFilter);
+            } else if (advisor.getOrder() == AuthorizationInterceptorsOrder.PRE_AUTHORIZE.getOrder()) {
+                advisors.add(AuthorizationManagerBeforeMethodInterceptor.preAuthorize(preAuthorize));
+            } else if (advisor.getOrder() == AuthorizationInterceptorsOrder.POST_AUTHORIZE.getOrder()) {
+                advisors.add(AuthorizationManagerAfterMethodInterceptor.postAuthorize(postAuthorize));
+            } else if (advisor.getOrder() == AuthorizationInterceptorsOrder.POST_FILTER.getOrder()) {
+                advisors.add(postFilter);
+            } else {
+                advisors.add(advisor);
+            }
+        }
+        proxyFactory.setAdvisors(advisors);
+        return proxyFactory;
+    }
+
+    /**
+     * same as {@link AuthorizationAdvisorProxyFactory#proxy(Object)}: containers, classes and the like are left to
+     * the factory's visitor, anything else is wrapped in a proxy of its interfaces, or a subclass when not final
+     */
+    Object proxy(Object target) {
+        if (target == null) {
+            return null;
+        }
+        Object visited = visitor.visit(proxyFactory, target);
+        if (visited != null) {
+            return visited;
+        }
+        Class<?> targetClass = target.getClass();
+        ProxyFactory factory = new ProxyFactory();
+        factory.setTarget(target);
+        factory.setInterfaces(interfaces.computeIfAbsent(targetClass, ClassUtils::getAllInterfacesForClass));
+        factory.setAdvisorChainFactory(advisorChainFactory);
+        factory.addAdvisors(advisors);
+        factory.setProxyTargetClass(!Modifier.isFinal(targetClass.getModifiers()));
+        return factory.getProxy();
+    }
+
+    /**
+     * all proxies of one {@link AuthorizationReturnValueProxies} have the same advisors, so a chain computed for
+     * one of them holds for the others
+     */
+    private static final class SharedAdvisorChainFactory implements AdvisorChainFactory {
+        private final Map<MethodClassKey, List<Object>> chains = new ConcurrentReferenceHashMap<>(256);
+
+        @Override
+        public List<Object> getInterceptorsAndDynamicInterceptionAdvice(Advised config, Method method,
+                                                                        Class<?> targetClass) {
+            return chains.computeIfAbsent(new MethodClassKey(method, targetClass), key ->
+                    DefaultAdvisorChainFactory.INSTANCE.getInterceptorsAndDynamicInterceptionAdvice(
+                            config, method, targetClass));
+        }
+    }
 }
 
 class DefaultBankAccountService implements BankAccountService {
     @PreReadBankAccount
     @Override
     public Account findById(Long id) {
-        AuthorizationAdvisorProxyFactory proxyFactory = AuthorizationAdvisorProxyFactory.withDefaults();
         BankAccount bankAccount = new BankAccount(id, "cc", "123456", BigDecimal.valueOf(100));
 
         // proxy return value
-        return (Account) proxyFactory.proxy(bankAccount);
+        return (Account) AuthorizationReturnValueProxies.withDefaults().proxy(bankAccount);
     }
 
 
@@ -119,7 +320,7 @@ class DefaultBankAccountService implements BankAccountService {
 
 @Target(ElementType.METHOD)
 @Retention(RetentionPolicy.RUNTIME)
-@PostAuthorize("returnObject.username() == authentication?.name or hasAuthority('ROLE_ADMIN')")
+@PostAuthorize("returnObject.username == authentication?.name or hasAuthority('ROLE_ADMIN')")
 @interface PreReadBankAccount {
 
 }
@@ -131,18 +332,3 @@ interface BankAccountService {
     // @PreReadBankAccount
     Account getById(Long id);
 }
-
-record BankAccount(Long id, String username, String account, BigDecimal balance) implements Account {
-    @PreAuthorize("this.username == authentication?.name")
-    @Override
-    public String account() {
-        return account;
-    }
-}
-
-interface Account {
-    Long id();
-    String username();
-    String account();
-    BigDecimal balance();
-}
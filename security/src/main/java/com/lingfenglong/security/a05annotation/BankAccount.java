@@ -0,0 +1,16 @@
+package com.lingfenglong.security.a05annotation;
+
+import org.springframework.security.access.prepost.PreAuthorize;
+
+import java.math.BigDecimal;
+
+/**
+ * public, like {@link Account}, so SpEL can compile the expressions reading it
+ */
+public record BankAccount(Long id, String username, String account, BigDecimal balance) implements Account {
+    @PreAuthorize("this.username == authentication?.name")
+    @Override
+    public String account() {
+        return account;
+    }
+}
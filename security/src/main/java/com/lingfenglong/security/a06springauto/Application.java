@@ -1,36 +1,114 @@
 package com.lingfenglong.security.a06springauto;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.lingfenglong.security.support.CompilingExpressionParser;
+import com.lingfenglong.security.support.MethodSecurityExpressions;
 import org.aopalliance.intercept.MethodInvocation;
 import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.EvaluationException;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.ExpressionState;
+import org.springframework.expression.spel.SpelNode;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.ast.*;
+import org.springframework.expression.spel.standard.SpelExpression;
+import org.springframework.security.access.expression.SecurityExpressionOperations;
+import org.springframework.security.access.expression.method.DefaultMethodSecurityExpressionHandler;
+import org.springframework.security.access.expression.method.MethodSecurityExpressionHandler;
 import org.springframework.security.access.prepost.PostAuthorize;
-import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.authentication.TestingAuthenticationToken;
 import org.springframework.security.authorization.AuthorizationDeniedException;
 import org.springframework.security.authorization.AuthorizationResult;
 import org.springframework.security.authorization.method.*;
 import org.springframework.security.config.annotation.method.configuration.EnableMethodSecurity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.test.context.support.WithMockUser;
+import org.springframework.security.util.SimpleMethodInvocation;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ConcurrentReferenceHashMap;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.util.StringUtils;
 
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.reflect.Method;
 import java.math.BigDecimal;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 @SpringBootApplication(scanBasePackages = "com.lingfenglong.security.a06springauto")
 @EnableMethodSecurity
 public class Application {
+    private static final Logger log = LoggerFactory.getLogger(Application.class);
+
     public static void main(String[] args) {
         SpringApplication.run(Application.class, args);
     }
+
+    /**
+     * method security expressions compile to bytecode, see {@link CompilingExpressionParser}
+     */
+    @Bean
+    @ConditionalOnProperty(name = "security.decision-cache.enabled", havingValue = "false", matchIfMissing = true)
+    static DefaultMethodSecurityExpressionHandler methodSecurityExpressionHandler() {
+        DefaultMethodSecurityExpressionHandler expressionHandler = new DefaultMethodSecurityExpressionHandler();
+        expressionHandler.setExpressionParser(new CompilingExpressionParser());
+        return expressionHandler;
+    }
+
+    /**
+     * opt in with {@code security.decision-cache.enabled=true}, {@code security.decision-cache.spec} sizes the cache
+     */
+    @Bean
+    @ConditionalOnProperty(name = "security.decision-cache.enabled", havingValue = "true")
+    static DecisionCachingMethodSecurityExpressionHandler decisionCachingMethodSecurityExpressionHandler(
+            @Value("${security.decision-cache.spec:maximumSize=10000,expireAfterWrite=1m}") String spec) {
+        return new DecisionCachingMethodSecurityExpressionHandler(spec);
+    }
+
+    /**
+     * parses the method security expressions of this application's beans once all of them are created, so a broken
+     * one fails the startup; with {@code security.expressions.require-compiled=true} so does one SpEL can not compile
+     */
+    @Bean
+    static SmartInitializingSingleton methodSecurityExpressionVerifier(
+            ConfigurableListableBeanFactory beanFactory,
+            @Value("${security.expressions.require-compiled:false}") boolean requireCompiled) {
+        return () -> {
+            List<Class<?>> types = new ArrayList<>();
+            for (String beanName : beanFactory.getBeanDefinitionNames()) {
+                Class<?> type = beanFactory.getType(beanName, false);
+                if (type != null && type.getPackageName().equals(Application.class.getPackageName())) {
+                    types.add(type);
+                }
+            }
+            MethodSecurityExpressions.verify(requireCompiled, types)
+                    .forEach(interpreted -> log.warn("Method security expression is not compiled: {}", interpreted));
+        };
+    }
 }
 
 @SpringBootTest
@@ -38,6 +116,9 @@ class BankAccountServiceTest {
     @Autowired
     BankAccountService bankAccountService;
 
+    @Autowired
+    MethodSecurityExpressionHandler expressionHandler;
+
     @Test
     @WithMockUser(username = "cc", roles = {"ADMIN"})
     public void findById() {
@@ -93,92 +174,378 @@ class BankAccountServiceTest {
         String account = bankAccountService.findById(1L).getAccount();
         assertEquals("******", account);
     }
-}
 
-@Service
-class DefaultBankAccountService implements BankAccountService {
-    @PreReadBankAccount
-    @Override
-    public BankAccount findById(Long id) {
-        return new BankAccount(id, "cc", "123456", BigDecimal.valueOf(100));
+    @Test
+    public void expressionsCompile() {
+        try {
+            // every part of an expression has to run once before it compiles, so both sides of the "or"
+            for (int i = 0; i < 2; i++) {
+                authenticate("lfl", "ROLE_ADMIN");
+                assertEquals("******", bankAccountService.findById(1L).getAccount());
+
+                authenticate("lfl", "ROLE_USER");
+                assertThrows(AuthorizationDeniedException.class, () -> bankAccountService.findById(1L));
+
+                authenticate("cc", "ROLE_USER");
+                assertEquals("123456", bankAccountService.findById(1L).getAccount());
+            }
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+        assertEquals(List.of(), ((CompilingExpressionParser) expressionHandler.getExpressionParser()).interpreted());
     }
 
-    @PreReadBankAccount
-    @Override
-    public BankAccount getById(Long id) {
-        return findById(id);
+    private static void authenticate(String username, String authority) {
+        SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken(username, null, authority));
     }
 }
 
-@Target(ElementType.METHOD)
-@Retention(RetentionPolicy.RUNTIME)
-@PostAuthorize("returnObject.getUsername() == authentication?.name or hasAuthority('ROLE_ADMIN')")
-@AuthorizeReturnObject  // used to proxy return value
-@interface PreReadBankAccount {
+@SpringBootTest(properties = {"security.decision-cache.enabled=true", "security.expressions.require-compiled=true"})
+class DecisionCacheTest {
+    @Autowired
+    BankAccountService bankAccountService;
 
-}
+    @Autowired
+    DecisionCachingMethodSecurityExpressionHandler expressionHandler;
 
-interface BankAccountService {
-    BankAccount findById(Long id);
+    @Test
+    @WithMockUser(username = "cc")
+    public void repeatedReadsHitTheCache() {
+        long hits = expressionHandler.stats().hitCount();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("123456", bankAccountService.findById(1L).getAccount());
+        }
+        // @PostAuthorize of findById and @PreAuthorize of getAccount, both cached after the first read
+        assertEquals(4, expressionHandler.stats().hitCount() - hits);
+    }
 
-    BankAccount getById(Long id);
+    @Test
+    public void changedAuthoritiesAreNotServedFromTheCache() {
+        try {
+            SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken("lfl", null, "ROLE_ADMIN"));
+            assertDoesNotThrow(() -> bankAccountService.findById(1L));
+
+            SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken("lfl", null, "ROLE_MANAGER"));
+            assertThrows(AuthorizationDeniedException.class, () -> bankAccountService.findById(1L));
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+    @Test
+    public void targetAttributesArePartOfTheKey() throws NoSuchMethodException {
+        Expression expression = expressionHandler.getExpressionParser()
+                .parseExpression("returnObject.getUsername() == authentication?.name");
+        MethodInvocation invocation = new SimpleMethodInvocation(new DefaultBankAccountService(),
+                DefaultBankAccountService.class.getMethod("findById", Long.class));
+        Authentication authentication = new TestingAuthenticationToken("cc", null, "ROLE_USER");
+
+        EvaluationContext own = expressionHandler.createEvaluationContext(() -> authentication, invocation);
+        expressionHandler.setReturnObject(new BankAccount(1L, "cc", "123456", BigDecimal.ONE), own);
+        assertEquals(true, expression.getValue(own));
+
+        EvaluationContext other = expressionHandler.createEvaluationContext(() -> authentication, invocation);
+        expressionHandler.setReturnObject(new BankAccount(2L, "lfl", "654321", BigDecimal.ONE), other);
+        assertEquals(false, expression.getValue(other));
+    }
+
+    @Test
+    public void cachesOnlyExpressionsOfDeclaredInputs() {
+        assertTrue(expressionHandler.caches(parse("returnObject.getUsername() == authentication?.name or hasAuthority('ROLE_ADMIN')")));
+        assertTrue(expressionHandler.caches(parse("this.username == authentication?.name")));
+        assertTrue(expressionHandler.caches(parse("#id > 0 and hasAnyRole('ADMIN', 'MANAGER')")));
+
+        assertFalse(expressionHandler.caches(parse("hasPermission(#id, 'BankAccount', 'read')")));
+        assertFalse(expressionHandler.caches(parse("@defaultBankAccountService.findById(#id) != null")));
+        assertFalse(expressionHandler.caches(parse("T(java.lang.Math).random() > 0.5")));
+        assertFalse(expressionHandler.caches(parse("returnObject.toString() == authentication.name")));
+        assertFalse(expressionHandler.caches(parse("principal.username == 'cc'")));
+    }
+
+    @Test
+    public void unmarkedMethodsAreNotCached() throws NoSuchMethodException {
+        Expression expression = parse("returnObject.getAccount() == '123456'");
+        MethodInvocation invocation = new SimpleMethodInvocation(new DefaultBankAccountService(),
+                DefaultBankAccountService.class.getMethod("findById", Long.class));
+        Authentication authentication = new TestingAuthenticationToken("cc", null, "ROLE_USER");
+        EvaluationContext context = expressionHandler.createEvaluationContext(() -> authentication, invocation);
+        expressionHandler.setReturnObject(new BankAccount(1L, "cc", "123456", BigDecimal.ONE), context);
+
+        long requests = expressionHandler.stats().requestCount();
+        assertEquals(true, expression.getValue(context));
+        assertEquals(true, expression.getValue(context));
+        // getAccount is secured itself, so not marked as a decision input
+        assertEquals(requests, expressionHandler.stats().requestCount());
+    }
+
+    private Expression parse(String expression) {
+        return expressionHandler.getExpressionParser().parseExpression(expression);
+    }
 }
 
-class BankAccount {
-    private final Long id;
-    private final String username;
-    private final String account;
-    private final BigDecimal balance;
+/**
+ * Caches the outcome of method security expressions that only read declared inputs:
+ * <ul>
+ *     <li>properties or no-argument methods of {@code returnObject} or {@code this}, when the method read is a record
+ *     component accessor or marked {@link DecisionInput}</li>
+ *     <li>method arguments such as {@code #id}</li>
+ *     <li>{@code authentication.name}</li>
+ *     <li>{@code hasAuthority}, {@code hasRole}, their {@code hasAny} forms, {@code permitAll} and {@code denyAll}
+ *     with literal arguments</li>
+ * </ul>
+ * combined with literals, comparisons, {@code and}, {@code or}, {@code not} and conditionals. A decision is keyed by
+ * the expression (one per annotated method), the name and authorities of the authentication and the values of the
+ * inputs, so once the authorities change the old decisions no longer match. Only inputs of value types (strings,
+ * numbers, booleans, enums) are used as keys. Any other expression, or input, is evaluated every time. As SpEL only
+ * finds the methods behind {@code returnObject} and {@code this} while evaluating, so does this cache: an expression
+ * reading an unmarked method parses as cacheable but never caches.
+ */
+class DecisionCachingMethodSecurityExpressionHandler extends DefaultMethodSecurityExpressionHandler {
+    private static final Set<String> AUTHORITY_METHODS =
+            Set.of("hasAuthority", "hasAnyAuthority", "hasRole", "hasAnyRole", "permitAll", "denyAll");
+    private static final Set<String> INPUT_ROOTS = Set.of("returnObject", "this");
+    private static final Object UNCACHEABLE = new Object();
+
+    /**
+     * per class, the pure accessor behind a step such as {@code username} or {@code getUsername()}, if any
+     */
+    private static final Map<Class<?>, Map<String, Optional<Method>>> accessors =
+            new ConcurrentReferenceHashMap<>(64, ConcurrentReferenceHashMap.ReferenceType.WEAK);
 
-    BankAccount(Long id, String username, String account, BigDecimal balance) {
-        this.id = id;
-        this.username = username;
-        this.account = account;
-        this.balance = balance;
+    private final Cache<Decision, Boolean> decisions;
+
+    DecisionCachingMethodSecurityExpressionHandler(String spec) {
+        this.decisions = Caffeine.from(spec).recordStats().build();
+        setExpressionParser(new DecisionCachingExpressionParser());
     }
 
-    public Long getId() {
-        return id;
+    CacheStats stats() {
+        return decisions.stats();
     }
 
-    public String getUsername() {
-        return username;
+    boolean caches(Expression expression) {
+        return expression instanceof DecisionCachingExpression;
     }
 
-    @PreAuthorize("this.username == authentication?.name")
-    @HandleAuthorizationDenied(handlerClass = MaskMethodAuthorizationDeniedHandler.class)   // record not support this
-    public String getAccount() {
-        return account;
+    /**
+     * drops the decisions of one principal, e.g. after its account was locked
+     */
+    void invalidate(String name) {
+        decisions.asMap().keySet().removeIf(decision -> Objects.equals(decision.name(), name));
     }
 
-    public BigDecimal getBalance() {
-        return balance;
+    void invalidateAll() {
+        decisions.invalidateAll();
     }
 
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        BankAccount that = (BankAccount) o;
-        return Objects.equals(id, that.id) && Objects.equals(username, that.username) && Objects.equals(account, that.account) && Objects.equals(balance, that.balance);
+    private static boolean readsDeclaredInputs(SpelNode node, List<SpelNodeImpl> inputs) {
+        if (node instanceof Literal) {
+            return true;
+        }
+        if (node instanceof OpOr || node instanceof OpAnd || node instanceof OperatorNot || node instanceof OpEQ
+                || node instanceof OpNE || node instanceof OpGT || node instanceof OpGE || node instanceof OpLT
+                || node instanceof OpLE || node instanceof Ternary || node instanceof Elvis) {
+            for (int i = 0; i < node.getChildCount(); i++) {
+                if (!readsDeclaredInputs(node.getChild(i), inputs)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (node instanceof VariableReference) {
+            if (node.toStringAST().equals("#this") || node.toStringAST().equals("#root")) {
+                return false;
+            }
+            inputs.add((SpelNodeImpl) node);
+            return true;
+        }
+        if (node instanceof MethodReference method) {
+            // a method of the root whose outcome only depends on the authorities
+            for (int i = 0; i < node.getChildCount(); i++) {
+                if (!(node.getChild(i) instanceof Literal)) {
+                    return false;
+                }
+            }
+            return AUTHORITY_METHODS.contains(method.getName());
+        }
+        if (node instanceof CompoundExpression && node.getChild(0) instanceof PropertyOrFieldReference head) {
+            if (head.getName().equals("authentication")) {
+                return node.getChildCount() == 2 && node.getChild(1) instanceof PropertyOrFieldReference property
+                        && property.getName().equals("name");
+            }
+            if (!INPUT_ROOTS.contains(head.getName())) {
+                return false;
+            }
+            for (int i = 1; i < node.getChildCount(); i++) {
+                if (!isPropertyRead(node.getChild(i))) {
+                    return false;
+                }
+            }
+            inputs.add((SpelNodeImpl) node);
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isPropertyRead(SpelNode node) {
+        if (node instanceof PropertyOrFieldReference) {
+            return true;
+        }
+        return node instanceof MethodReference method && method.getChildCount() == 0
+                && (method.getName().startsWith("get") || method.getName().startsWith("is"));
+    }
+
+    /**
+     * the value of {@code returnObject.a.getB()} read through pure accessors only, {@link #UNCACHEABLE} once a step
+     * has none
+     */
+    private static Object read(CompoundExpression input, ExpressionState state) {
+        Object value = input.getChild(0).getValue(state);
+        for (int i = 1; i < input.getChildCount(); i++) {
+            if (value == null) {
+                return UNCACHEABLE;
+            }
+            Class<?> type = value.getClass();
+            Method accessor = accessors.computeIfAbsent(type, key -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(input.getChild(i).toStringAST(), step -> pureAccessor(type, step))
+                    .orElse(null);
+            if (accessor == null) {
+                return UNCACHEABLE;
+            }
+            value = ReflectionUtils.invokeMethod(accessor, value);
+        }
+        return value;
+    }
+
+    /**
+     * the method SpEL calls for {@code step}, looked up as SpEL does, when it is a record component accessor or
+     * marked {@link DecisionInput}
+     */
+    private static Optional<Method> pureAccessor(Class<?> type, String step) {
+        List<String> names = step.endsWith("()") ? List.of(step.substring(0, step.length() - 2))
+                : List.of("get" + StringUtils.capitalize(step), "is" + StringUtils.capitalize(step), step);
+        for (String name : names) {
+            Method method = ClassUtils.getMethodIfAvailable(type, name);
+            if (method == null) {
+                continue;
+            }
+            if (!AnnotatedElementUtils.hasAnnotation(method, DecisionInput.class) && !(type.isRecord()
+                    && Arrays.stream(type.getRecordComponents()).anyMatch(c -> c.getAccessor().equals(method)))) {
+                return Optional.empty();
+            }
+            ReflectionUtils.makeAccessible(method);
+            return Optional.of(method);
+        }
+        return Optional.empty();
+    }
+
+    private static boolean isValue(Object value) {
+        return value == null || value instanceof String || value instanceof Number || value instanceof Boolean
+                || value instanceof Character || value instanceof Enum<?>;
+    }
+
+    private final class DecisionCachingExpressionParser extends CompilingExpressionParser {
+
+        @Override
+        protected SpelExpression createExpression(String expressionString, SpelNodeImpl ast,
+                                                  SpelParserConfiguration configuration) {
+            List<SpelNodeImpl> inputs = new ArrayList<>();
+            if (!readsDeclaredInputs(ast, inputs)) {
+                return super.createExpression(expressionString, ast, configuration);
+            }
+            return new DecisionCachingExpression(expressionString, ast, configuration, inputs);
+        }
     }
 
+    private final class DecisionCachingExpression extends CompilingExpressionParser.CompilingExpression {
+        private final SpelParserConfiguration configuration;
+        private final SpelNodeImpl[] inputs;
+
+        DecisionCachingExpression(String expression, SpelNodeImpl ast, SpelParserConfiguration configuration,
+                                  List<SpelNodeImpl> inputs) {
+            super(expression, ast, configuration);
+            this.configuration = configuration;
+            this.inputs = inputs.toArray(SpelNodeImpl[]::new);
+        }
+
+        @Override
+        public Object getValue(EvaluationContext context) throws EvaluationException {
+            if (!(context.getRootObject().getValue() instanceof SecurityExpressionOperations root)
+                    || root.getAuthentication() == null) {
+                return super.getValue(context);
+            }
+            Object[] values = new Object[inputs.length];
+            try {
+                ExpressionState state = new ExpressionState(context, configuration);
+                for (int i = 0; i < inputs.length; i++) {
+                    values[i] = inputs[i] instanceof CompoundExpression input ? read(input, state)
+                            : inputs[i].getValue(state);
+                    if (values[i] == UNCACHEABLE || !isValue(values[i])) {
+                        return super.getValue(context);
+                    }
+                }
+            } catch (EvaluationException ex) {
+                return super.getValue(context);
+            }
+
+            Authentication authentication = root.getAuthentication();
+            Decision key = new Decision(this, authentication.getName(),
+                    AuthorityUtils.authorityListToSet(authentication.getAuthorities()), Arrays.asList(values));
+            Boolean decision = decisions.getIfPresent(key);
+            if (decision != null) {
+                return decision;
+            }
+            Object value = super.getValue(context);
+            if (value instanceof Boolean granted) {
+                decisions.put(key, granted);
+            }
+            return value;
+        }
+    }
+
+    private record Decision(Expression expression, String name, Set<String> authorities, List<Object> inputs) {
+    }
+}
+
+@Service
+class DefaultBankAccountService implements BankAccountService {
+    @PreReadBankAccount
     @Override
-    public int hashCode() {
-        return Objects.hash(id, username, account, balance);
+    public BankAccount findById(Long id) {
+        return new BankAccount(id, "cc", "123456", BigDecimal.valueOf(100));
     }
 
+    @PreReadBankAccount
     @Override
-    public String toString() {
-        return "BankAccount{" +
-                "id=" + id +
-                ", username='" + username + '\'' +
-                ", account='" + account + '\'' +
-                ", balance=" + balance +
-                '}';
+    public BankAccount getById(Long id) {
+        return findById(id);
     }
 }
 
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@PostAuthorize("returnObject.getUsername() == authentication?.name or hasAuthority('ROLE_ADMIN')")
+@AuthorizeReturnObject  // used to proxy return value
+@interface PreReadBankAccount {
+
+}
+
+/**
+ * marks a no-argument method whose result only depends on the state of its object, so a method security decision
+ * reading it may be cached, see {@link DecisionCachingMethodSecurityExpressionHandler}
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@interface DecisionInput {
+
+}
+
+interface BankAccountService {
+    BankAccount findById(Long id);
+
+    BankAccount getById(Long id);
+}
+
 @Component
 class MaskMethodAuthorizationDeniedHandler implements MethodAuthorizationDeniedHandler {
 
@@ -0,0 +1,68 @@
+package com.lingfenglong.security.a06springauto;
+
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.authorization.method.HandleAuthorizationDenied;
+
+import java.math.BigDecimal;
+import java.util.Objects;
+
+/**
+ * public so SpEL can compile the expressions reading it
+ */
+public class BankAccount {
+    private final Long id;
+    private final String username;
+    private final String account;
+    private final BigDecimal balance;
+
+    BankAccount(Long id, String username, String account, BigDecimal balance) {
+        this.id = id;
+        this.username = username;
+        this.account = account;
+        this.balance = balance;
+    }
+
+    @DecisionInput
+    public Long getId() {
+        return id;
+    }
+
+    @DecisionInput
+    public String getUsername() {
+        return username;
+    }
+
+    @PreAuthorize("this.username == authentication?.name")
+    @HandleAuthorizationDenied(handlerClass = MaskMethodAuthorizationDeniedHandler.class)   // record not support this
+    public String getAccount() {
+        return account;
+    }
+
+    @DecisionInput
+    public BigDecimal getBalance() {
+        return balance;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        BankAccount that = (BankAccount) o;
+        return Objects.equals(id, that.id) && Objects.equals(username, that.username) && Objects.equals(account, that.account) && Objects.equals(balance, that.balance);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, username, account, balance);
+    }
+
+    @Override
+    public String toString() {
+        return "BankAccount{" +
+                "id=" + id +
+                ", username='" + username + '\'' +
+                ", account='" + account + '\'' +
+                ", balance=" + balance +
+                '}';
+    }
+}
@@ -0,0 +1,62 @@
+package com.lingfenglong.security.support;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.core.Authentication;
+
+import java.util.function.Consumer;
+
+/**
+ * Records who accessed what, instead of marking the access on the {@link Authentication} itself: the
+ * authentication in the security context stays the one the user logged in with, however many calls are made.
+ * Events go to one listener, logging them by default.
+ */
+public final class AccessLog {
+    /**
+     * the id recorded for an access without one, e.g. {@code findById(null)}
+     */
+    public static final long NO_ID = Long.MIN_VALUE;
+
+    private static final Logger log = LoggerFactory.getLogger(AccessLog.class);
+    private static final Consumer<AccessEvent> LOGGING = event -> log.info("{} {}: {} {}", event.resource(),
+            event.id(), event.principal(), event.granted() ? "accessed" : "denied");
+
+    private static volatile Consumer<AccessEvent> listener = LOGGING;
+
+    private AccessLog() {
+    }
+
+    /**
+     * @param id of what was accessed within the resource, e.g. the account id, or {@link #NO_ID}
+     */
+    public record AccessEvent(String principal, String resource, long id, boolean granted, long timestamp) {
+    }
+
+    /**
+     * @param id may be null, recorded as {@link #NO_ID}
+     */
+    public static void granted(Authentication authentication, String resource, Long id) {
+        record(authentication, resource, id != null ? id : NO_ID, true);
+    }
+
+    /**
+     * @param id may be null, recorded as {@link #NO_ID}
+     */
+    public static void denied(Authentication authentication, String resource, Long id) {
+        record(authentication, resource, id != null ? id : NO_ID, false);
+    }
+
+    /**
+     * @return the listener replaced, to put back later
+     */
+    public static Consumer<AccessEvent> setListener(Consumer<AccessEvent> listener) {
+        Consumer<AccessEvent> previous = AccessLog.listener;
+        AccessLog.listener = (listener != null ? listener : LOGGING);
+        return previous;
+    }
+
+    private static void record(Authentication authentication, String resource, long id, boolean granted) {
+        String principal = (authentication != null ? authentication.getName() : null);
+        listener.accept(new AccessEvent(principal, resource, id, granted, System.currentTimeMillis()));
+    }
+}
@@ -0,0 +1,283 @@
+package com.lingfenglong.security.support;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * An {@link AccessLog} listener appending the events to a file from a background thread, so recording an access
+ * costs the calling thread one slot claimed in a ring buffer rather than a synchronous log call.
+ * <pre>{@code
+ * AuditLog auditLog = new AuditLog(Path.of("audit.log"), 8192, AuditLog.Overflow.DROP, AuditLog.Fsync.BATCH);
+ * AccessLog.setListener(auditLog);
+ * ...
+ * auditLog.close();
+ * }</pre>
+ * The buffer is a bounded multi-producer, single-consumer ring: each slot carries a sequence telling whether it is
+ * free for the producer of that lap or filled for the writer, and the event fields live in parallel arrays. One line
+ * per event: {@code timestamp principal resource id GRANTED|DENIED}, tab separated. Backslashes, tabs and line
+ * breaks in the principal and the resource are written as {@code \\}, {@code \t}, {@code \n} and {@code \r}, so
+ * a crafted user name can neither add fields nor start a record of its own.
+ */
+public final class AuditLog implements Consumer<AccessLog.AccessEvent>, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(AuditLog.class);
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long FSYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int SAMPLE_EVERY = 16;
+
+    /**
+     * what a producer does when the buffer is full
+     */
+    public enum Overflow {
+        /**
+         * wait for the writer to free a slot
+         */
+        BLOCK,
+        /**
+         * drop the event
+         */
+        DROP,
+        /**
+         * wait for one event in every {@value AuditLog#SAMPLE_EVERY} and drop the others
+         */
+        SAMPLE
+    }
+
+    /**
+     * when the file is forced to disk
+     */
+    public enum Fsync {
+        /**
+         * never, left to the operating system
+         */
+        NEVER,
+        /**
+         * after every batch written
+         */
+        BATCH,
+        /**
+         * after a batch when the last force is a second old or more
+         */
+        INTERVAL
+    }
+
+    /**
+     * @param failed taken, but lost to an error writing them
+     */
+    public record Stats(long enqueued, long dropped, long blocked, long written, long failed, long batches,
+                        long fsyncs) {
+    }
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final String[] principals;
+    private final String[] resources;
+    private final long[] ids;
+    private final boolean[] granted;
+    private final long[] timestamps;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final Overflow overflow;
+    private final Fsync fsync;
+    private final FileChannel channel;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    private final LongAdder appends = new LongAdder();
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final AtomicLong overflowed = new AtomicLong();
+    private volatile long written;
+    private volatile long failed;
+    private volatile long batches;
+    private volatile long fsyncs;
+
+    /**
+     * @param capacity rounded up to a power of two
+     * @throws IOException if the file can not be opened for appending
+     */
+    public AuditLog(Path file, int capacity, Overflow overflow, Fsync fsync) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.principals = new String[size];
+        this.resources = new String[size];
+        this.ids = new long[size];
+        this.granted = new boolean[size];
+        this.timestamps = new long[size];
+        this.overflow = overflow;
+        this.fsync = fsync;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.writer = new Thread(this::drain, "audit-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public void accept(AccessLog.AccessEvent event) {
+        append(event.principal(), event.resource(), event.id(), event.granted(), event.timestamp());
+    }
+
+    /**
+     * @return whether the event was taken, {@code false} when dropped
+     */
+    public boolean append(String principal, String resource, long id, boolean granted, long timestamp) {
+        // counted before closed is read, every append ends as enqueued or dropped
+        appends.increment();
+        boolean waited = false;
+        while (!closed) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    principals[index] = principal;
+                    resources[index] = resource;
+                    ids[index] = id;
+                    this.granted[index] = granted;
+                    timestamps[index] = timestamp;
+                    sequences.set(index, position + 1);
+                    enqueued.increment();
+                    return true;
+                }
+            } else if (sequence < position) {
+                // full, the writer has not freed this slot yet
+                if (!waited) {
+                    if (overflow == Overflow.DROP
+                            || overflow == Overflow.SAMPLE && overflowed.getAndIncrement() % SAMPLE_EVERY != 0) {
+                        break;
+                    }
+                    blocked.increment();
+                    waited = true;
+                }
+                LockSupport.parkNanos(IDLE_NANOS / 100);
+            }
+        }
+        dropped.increment();
+        return false;
+    }
+
+    public Stats stats() {
+        return new Stats(enqueued.sum(), dropped.sum(), blocked.sum(), written, failed, batches, fsyncs);
+    }
+
+    /**
+     * stops taking events, writes those already taken and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void drain() {
+        int batchSize = Math.max(1, (mask + 1) / 4);
+        StringBuilder lines = new StringBuilder(batchSize * 64);
+        long lastFsync = System.nanoTime();
+        while (true) {
+            // read before draining, so nothing taken before the close is left behind
+            boolean closing = closed && settled();
+            int count = 0;
+            while (count < batchSize) {
+                int index = (int) head & mask;
+                if (sequences.get(index) != head + 1) {
+                    break;
+                }
+                lines.append(timestamps[index]).append('\t');
+                escape(principals[index], lines).append('\t');
+                escape(resources[index], lines).append('\t')
+                        .append(ids[index]).append('\t')
+                        .append(granted[index] ? "GRANTED" : "DENIED").append('\n');
+                principals[index] = null;
+                resources[index] = null;
+                sequences.set(index, head + mask + 1);
+                head++;
+                count++;
+            }
+            if (count > 0) {
+                try {
+                    write(lines);
+                    written += count;
+                } catch (IOException ex) {
+                    log.error("Could not write {} audit events", count, ex);
+                    failed += count;
+                }
+                lines.setLength(0);
+                batches++;
+                if (fsync == Fsync.BATCH
+                        || fsync == Fsync.INTERVAL && System.nanoTime() - lastFsync >= FSYNC_INTERVAL_NANOS) {
+                    try {
+                        channel.force(false);
+                        fsyncs++;
+                    } catch (IOException ex) {
+                        log.error("Could not force the audit log to disk", ex);
+                    }
+                    lastFsync = System.nanoTime();
+                }
+            } else if (closing) {
+                return;
+            } else {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * whether every append that may have seen the log open has published its event, once closed nothing can be
+     * taken afterwards
+     */
+    private boolean settled() {
+        // ended before begun: each append counted as ended is counted as begun too, and one whose begin is missed
+        // began after closed was set and drops its event
+        long ended = enqueued.sum() + dropped.sum();
+        return ended == appends.sum();
+    }
+
+    private static StringBuilder escape(String field, StringBuilder lines) {
+        if (field == null) {
+            return lines.append((String) null);
+        }
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            switch (c) {
+                case '\\' -> lines.append("\\\\");
+                case '\t' -> lines.append("\\t");
+                case '\n' -> lines.append("\\n");
+                case '\r' -> lines.append("\\r");
+                default -> lines.append(c);
+            }
+        }
+        return lines;
+    }
+
+    private void write(CharSequence lines) throws IOException {
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(lines.toString());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
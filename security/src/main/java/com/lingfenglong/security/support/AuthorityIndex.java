@@ -0,0 +1,193 @@
+package com.lingfenglong.security.support;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The authorities of one {@link Authentication} as a bitset of interned authority ids, so checking one is a bit
+ * test instead of a scan of {@link Authentication#getAuthorities()} comparing a freshly allocated authority.
+ * <pre>{@code
+ * private static final int ROLE_ADMIN = AuthorityIndex.role("ADMIN");
+ * ...
+ * if (!AuthorityIndex.hasAuthority(authentication, ROLE_ADMIN)) {
+ * }</pre>
+ * An index is kept per authentication, by identity, for as long as the authentication is reachable, so a thread
+ * serving several users in turn builds each one's once and then allocates nothing. Authentications are taken as
+ * immutable once created, and are only weakly referenced, credentials and all. Only the authorities the code asks
+ * about get an id, the others an authentication carries are left out of its index.
+ */
+public final class AuthorityIndex {
+    private static final Map<String, Integer> IDS = new ConcurrentHashMap<>();
+    private static final Map<Identity, AuthorityIndex> INDEXES = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Authentication> COLLECTED = new ReferenceQueue<>();
+    private static final ThreadLocal<Slot> LAST = ThreadLocal.withInitial(Slot::new);
+    /**
+     * written after the id it counts, so an index built having read it finds every id below
+     */
+    private static volatile int interned;
+
+    private final Key key;
+    private final long[] bits;
+    private final int known;
+
+    private AuthorityIndex(Key key, long[] bits, int known) {
+        this.key = key;
+        this.bits = bits;
+        this.known = known;
+    }
+
+    /**
+     * the interned id of an authority, e.g. {@code ROLE_ADMIN}
+     */
+    public static int authority(String authority) {
+        Integer id = IDS.get(authority);
+        return id != null ? id : intern(authority);
+    }
+
+    private static synchronized int intern(String authority) {
+        Integer id = IDS.get(authority);
+        if (id == null) {
+            id = interned;
+            IDS.put(authority, id);
+            interned = id + 1;
+        }
+        return id;
+    }
+
+    /**
+     * the interned id of a role, {@code ADMIN} and {@code ROLE_ADMIN} being the same
+     */
+    public static int role(String role) {
+        return authority(role.startsWith("ROLE_") ? role : "ROLE_" + role);
+    }
+
+    public static AuthorityIndex of(Authentication authentication) {
+        Slot slot = LAST.get();
+        // built again once an authority was interned since, it may be one of this authentication's
+        if (slot.index != null && slot.index.key.get() == authentication && slot.index.known == interned) {
+            return slot.index;
+        }
+        slot.lookup.of(authentication);
+        AuthorityIndex index = INDEXES.get(slot.lookup);
+        slot.lookup.of(null);
+        if (index == null || index.known != interned) {
+            expunge();
+            index = build(index != null ? index.key : new Key(authentication));
+            INDEXES.put(index.key, index);
+        }
+        slot.index = index;
+        return index;
+    }
+
+    private static void expunge() {
+        for (Reference<?> collected; (collected = COLLECTED.poll()) != null; ) {
+            INDEXES.remove(collected);
+        }
+    }
+
+    /**
+     * @param authorityId from {@link #authority(String)} or {@link #role(String)}
+     */
+    public static boolean hasAuthority(Authentication authentication, int authorityId) {
+        return authentication != null && of(authentication).has(authorityId);
+    }
+
+    public boolean has(int authorityId) {
+        int word = authorityId >>> 6;
+        return word < bits.length && (bits[word] & (1L << authorityId)) != 0;
+    }
+
+    private static AuthorityIndex build(Key key) {
+        Authentication authentication = key.get();
+        int known = interned;
+        long[] bits = new long[0];
+        for (GrantedAuthority grantedAuthority : authentication.getAuthorities()) {
+            String authority = grantedAuthority.getAuthority();
+            Integer id = authority != null ? IDS.get(authority) : null;
+            if (id == null) {
+                continue;
+            }
+            if (id >>> 6 >= bits.length) {
+                bits = Arrays.copyOf(bits, (id >>> 6) + 1);
+            }
+            bits[id >>> 6] |= 1L << id;
+        }
+        return new AuthorityIndex(key, bits, known);
+    }
+
+    /**
+     * an authentication by identity
+     */
+    private interface Identity {
+        Authentication authentication();
+    }
+
+    /**
+     * equal to other identities of the authentication until it is collected
+     */
+    private static final class Key extends WeakReference<Authentication> implements Identity {
+        private final int hash;
+
+        private Key(Authentication authentication) {
+            super(authentication, COLLECTED);
+            this.hash = System.identityHashCode(authentication);
+        }
+
+        @Override
+        public Authentication authentication() {
+            return get();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            Authentication authentication = get();
+            return this == o || authentication != null && o instanceof Identity identity
+                    && identity.authentication() == authentication;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * looks an authentication up without allocating a key, holding it only for the lookup
+     */
+    private static final class Lookup implements Identity {
+        private Authentication authentication;
+        private int hash;
+
+        private void of(Authentication authentication) {
+            this.authentication = authentication;
+            this.hash = System.identityHashCode(authentication);
+        }
+
+        @Override
+        public Authentication authentication() {
+            return authentication;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Identity identity && identity.authentication() == authentication;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Slot {
+        private final Lookup lookup = new Lookup();
+        private AuthorityIndex index;
+    }
+}
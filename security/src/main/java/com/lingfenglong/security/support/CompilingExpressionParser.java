@@ -0,0 +1,86 @@
+package com.lingfenglong.security.support;
+
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.EvaluationException;
+import org.springframework.expression.Expression;
+import org.springframework.expression.ParseException;
+import org.springframework.expression.ParserContext;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelEvaluationException;
+import org.springframework.expression.spel.SpelMessage;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.ast.SpelNodeImpl;
+import org.springframework.expression.spel.standard.SpelExpression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link SpelExpressionParser} in {@link SpelCompilerMode#IMMEDIATE} mode: an expression is compiled to bytecode
+ * right after its first evaluation, which is when SpEL learns the types to compile against. Unlike plain
+ * {@code IMMEDIATE} mode, a compiled expression meeting other types (e.g. another {@code Authentication}) is
+ * interpreted again instead of failing, and compiled again for the new types.
+ */
+public class CompilingExpressionParser extends SpelExpressionParser {
+    private final SpelParserConfiguration configuration;
+    private final Set<SpelExpression> expressions = ConcurrentHashMap.newKeySet();
+
+    public CompilingExpressionParser() {
+        this(new SpelParserConfiguration(SpelCompilerMode.IMMEDIATE, CompilingExpressionParser.class.getClassLoader()));
+    }
+
+    private CompilingExpressionParser(SpelParserConfiguration configuration) {
+        super(configuration);
+        this.configuration = configuration;
+    }
+
+    @Override
+    protected SpelExpression doParseExpression(String expressionString, ParserContext context) throws ParseException {
+        SpelExpression parsed = super.doParseExpression(expressionString, context);
+        SpelExpression expression = createExpression(expressionString, (SpelNodeImpl) parsed.getAST(), configuration);
+        expressions.add(expression);
+        return expression;
+    }
+
+    /**
+     * to be overridden for expressions doing more on evaluation, which should extend {@link CompilingExpression}
+     */
+    protected SpelExpression createExpression(String expressionString, SpelNodeImpl ast,
+                                              SpelParserConfiguration configuration) {
+        return new CompilingExpression(expressionString, ast, configuration);
+    }
+
+    /**
+     * the expressions parsed by this that are not compiled, either not evaluated yet or reading something SpEL
+     * can not compile, such as a method of a class that is not public
+     */
+    public List<String> interpreted() {
+        return expressions.stream()
+                .filter(expression -> !expression.compileExpression())
+                .map(Expression::getExpressionString)
+                .sorted()
+                .toList();
+    }
+
+    public static class CompilingExpression extends SpelExpression {
+
+        public CompilingExpression(String expression, SpelNodeImpl ast, SpelParserConfiguration configuration) {
+            super(expression, ast, configuration);
+        }
+
+        @Override
+        public Object getValue(EvaluationContext context) throws EvaluationException {
+            try {
+                return super.getValue(context);
+            } catch (SpelEvaluationException ex) {
+                if (ex.getMessageCode() != SpelMessage.EXCEPTION_RUNNING_COMPILED_EXPRESSION) {
+                    throw ex;
+                }
+                revertToInterpreted();
+                return super.getValue(context);
+            }
+        }
+    }
+}
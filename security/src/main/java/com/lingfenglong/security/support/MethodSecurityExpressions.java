@@ -0,0 +1,148 @@
+package com.lingfenglong.security.support;
+
+import org.springframework.beans.BeanUtils;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.expression.ParseException;
+import org.springframework.expression.spel.SpelNode;
+import org.springframework.expression.spel.ast.CompoundExpression;
+import org.springframework.expression.spel.ast.MethodReference;
+import org.springframework.expression.spel.ast.PropertyOrFieldReference;
+import org.springframework.expression.spel.standard.SpelExpression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.security.access.prepost.PostAuthorize;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.authorization.method.AuthorizeReturnObject;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * Parses the {@code @PreAuthorize} and {@code @PostAuthorize} expressions of some types up front, so a broken
+ * expression fails the startup rather than the first call, and tells which of them SpEL can not compile. SpEL only
+ * compiles reads of public types; {@code returnObject} is typed by the method's return type and {@code this} by
+ * the class declaring it. Return types of {@link AuthorizeReturnObject} methods are checked as well.
+ */
+public final class MethodSecurityExpressions {
+    private static final SpelExpressionParser PARSER = new SpelExpressionParser();
+
+    private MethodSecurityExpressions() {
+    }
+
+    /**
+     * an expression that runs interpreted, and why
+     */
+    public record Interpreted(Method method, String expression, String reason) {
+        @Override
+        public String toString() {
+            return method.getDeclaringClass().getSimpleName() + "." + method.getName() + " runs \"" + expression
+                    + "\" interpreted, " + reason;
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if an expression does not parse
+     */
+    public static List<Interpreted> verify(Collection<Class<?>> types) {
+        List<Interpreted> interpreted = new ArrayList<>();
+        Set<Class<?>> visited = new HashSet<>();
+        Deque<Class<?>> pending = new ArrayDeque<>(types);
+        while (!pending.isEmpty()) {
+            Class<?> type = ClassUtils.getUserClass(pending.pop());
+            if (!visited.add(type)) {
+                continue;
+            }
+            for (Method method : ReflectionUtils.getUniqueDeclaredMethods(type, ReflectionUtils.USER_DECLARED_METHODS)) {
+                PreAuthorize preAuthorize = AnnotatedElementUtils.findMergedAnnotation(method, PreAuthorize.class);
+                if (preAuthorize != null) {
+                    verify(method, preAuthorize.value(), interpreted);
+                }
+                PostAuthorize postAuthorize = AnnotatedElementUtils.findMergedAnnotation(method, PostAuthorize.class);
+                if (postAuthorize != null) {
+                    verify(method, postAuthorize.value(), interpreted);
+                }
+                if (AnnotatedElementUtils.hasAnnotation(method, AuthorizeReturnObject.class)) {
+                    pending.push(method.getReturnType());
+                }
+            }
+        }
+        return interpreted;
+    }
+
+    /**
+     * @param requireCompiled whether an expression SpEL can not compile fails as well
+     * @throws IllegalStateException if an expression does not parse, or can not be compiled when that is required
+     */
+    public static List<Interpreted> verify(boolean requireCompiled, Collection<Class<?>> types) {
+        List<Interpreted> interpreted = verify(types);
+        if (requireCompiled && !interpreted.isEmpty()) {
+            throw new IllegalStateException("Method security expressions can not be compiled: " + interpreted);
+        }
+        return interpreted;
+    }
+
+    private static void verify(Method method, String expressionString, List<Interpreted> interpreted) {
+        SpelExpression expression;
+        try {
+            expression = PARSER.parseRaw(expressionString);
+        } catch (ParseException ex) {
+            throw new IllegalStateException("Invalid expression \"" + expressionString + "\" on " + method, ex);
+        }
+        String reason = uncompilable(expression.getAST(), method);
+        if (reason != null) {
+            interpreted.add(new Interpreted(method, expressionString, reason));
+        }
+    }
+
+    /**
+     * follows the reads of {@code returnObject} and {@code this} through their types, anything else is only known
+     * once evaluated and taken as compilable
+     */
+    private static String uncompilable(SpelNode node, Method method) {
+        if (node instanceof CompoundExpression && node.getChild(0) instanceof PropertyOrFieldReference head
+                && (head.getName().equals("returnObject") || head.getName().equals("this"))) {
+            Class<?> type = head.getName().equals("returnObject") ? method.getReturnType() : method.getDeclaringClass();
+            for (int i = 1; i < node.getChildCount() && type != null; i++) {
+                Method read = read(type, node.getChild(i));
+                if (read == null) {
+                    return null;
+                }
+                if (!publiclyDeclared(read)) {
+                    return read.getDeclaringClass().getSimpleName() + " is not public";
+                }
+                type = read.getReturnType();
+            }
+            return null;
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            String reason = uncompilable(node.getChild(i), method);
+            if (reason != null) {
+                return reason;
+            }
+        }
+        return null;
+    }
+
+    private static Method read(Class<?> type, SpelNode node) {
+        if (node instanceof MethodReference method && method.getChildCount() == 0) {
+            return ClassUtils.getMethodIfAvailable(type, method.getName());
+        }
+        if (node instanceof PropertyOrFieldReference property) {
+            PropertyDescriptor descriptor = BeanUtils.getPropertyDescriptor(type, property.getName());
+            if (descriptor != null && descriptor.getReadMethod() != null) {
+                return descriptor.getReadMethod();
+            }
+            // record style accessor
+            return ClassUtils.getMethodIfAvailable(type, property.getName());
+        }
+        return null;
+    }
+
+    private static boolean publiclyDeclared(Method method) {
+        return Modifier.isPublic(method.getDeclaringClass().getModifiers())
+                || Modifier.isPublic(ClassUtils.getInterfaceMethodIfPossible(method, null).getDeclaringClass().getModifiers());
+    }
+}